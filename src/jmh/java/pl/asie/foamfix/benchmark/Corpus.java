@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import com.google.common.io.ByteStreams;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * The classes replayed by the benchmarks: by default, every vanilla, FML and Forge
+ * class in the dev workspace jars on the classpath. Set foamfix.benchmark.corpus to
+ * a list of jars or class directories to use something else.
+ */
+public final class Corpus {
+    private static final String[] PREFIXES = { "net/minecraft/", "cpw/mods/fml/", "net/minecraftforge/" };
+    private static final String[] MARKER_CLASSES = { "net/minecraft/world/World.class", "cpw/mods/fml/common/Loader.class" };
+
+    private static Map<String, byte[]> classes;
+
+    private Corpus() {
+
+    }
+
+    /**
+     * @return Class bytes by transformed (dotted) name, in name order.
+     */
+    public static synchronized Map<String, byte[]> getClasses() throws IOException {
+        if (classes == null) {
+            Map<String, byte[]> map = new TreeMap<>();
+            for (File f : getSources()) {
+                if (f.isDirectory()) {
+                    readDirectory(f.toPath(), map);
+                } else {
+                    readJar(f, map);
+                }
+            }
+            if (map.isEmpty()) {
+                throw new RuntimeException("Benchmark corpus is empty!");
+            }
+            classes = map;
+        }
+        return classes;
+    }
+
+    /**
+     * Sets up the FoamFix transformer the way FoamFixCore does, with a default
+     * configuration in a scratch game directory.
+     */
+    public static BugfixModClassTransformer createTransformer() throws IOException {
+        File gameDir = Files.createTempDirectory("foamfix-benchmark").toFile();
+        // Makes the transformer enable its client-side fixes.
+        new File(gameDir, "saves").mkdirs();
+
+        BugfixModClassTransformer.instance = null;
+        BugfixModClassTransformer transformer = new BugfixModClassTransformer();
+        transformer.settingsFile = new File(gameDir, "config/foamfix.cfg");
+        transformer.initialize(false);
+        return transformer;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T getField(Object o, String name) {
+        try {
+            Field field = o.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return (T) field.get(o);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Set<File> getSources() throws IOException {
+        Set<File> sources = new LinkedHashSet<>();
+        String property = System.getProperty("foamfix.benchmark.corpus");
+        if (property != null) {
+            for (String s : property.split(File.pathSeparator)) {
+                if (!s.isEmpty()) {
+                    sources.add(new File(s));
+                }
+            }
+        } else {
+            for (String marker : MARKER_CLASSES) {
+                URL url = Corpus.class.getClassLoader().getResource(marker);
+                if (url != null && "jar".equals(url.getProtocol())) {
+                    try {
+                        sources.add(new File(((JarURLConnection) url.openConnection()).getJarFileURL().toURI()));
+                    } catch (URISyntaxException e) {
+                        throw new IOException(e);
+                    }
+                }
+            }
+        }
+        return sources;
+    }
+
+    private static boolean isCorpusClass(String path) {
+        if (!path.endsWith(".class")) {
+            return false;
+        }
+        for (String prefix : PREFIXES) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toClassName(String path) {
+        return path.substring(0, path.length() - 6).replace('/', '.');
+    }
+
+    private static void readJar(File file, Map<String, byte[]> map) throws IOException {
+        try (JarFile jar = new JarFile(file)) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (isCorpusClass(entry.getName())) {
+                    try (InputStream stream = jar.getInputStream(entry)) {
+                        map.put(toClassName(entry.getName()), ByteStreams.toByteArray(stream));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readDirectory(Path root, Map<String, byte[]> map) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            stream.filter(Files::isRegularFile).forEach(paths::add);
+        }
+        for (Path path : paths) {
+            String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (isCorpusClass(name)) {
+                map.put(toClassName(name), Files.readAllBytes(path));
+            }
+        }
+    }
+}
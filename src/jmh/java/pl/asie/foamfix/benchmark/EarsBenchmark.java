@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.foamfix.repack.com.unascribed.ears.common.agent.EarsAgent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures EarsAgent.transform plus writing the result, on freshly parsed
+ * target classes, one class per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EarsBenchmark {
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> data = new ArrayList<>();
+    private int index;
+    private ClassNode classNode;
+
+    @Setup
+    public void setup() throws IOException {
+        for (Map.Entry<String, byte[]> entry : Corpus.getClasses().entrySet()) {
+            if (EarsAgent.isTarget(entry.getKey())) {
+                names.add(entry.getKey());
+                data.add(entry.getValue());
+            }
+        }
+
+        if (names.isEmpty()) {
+            throw new RuntimeException("No Ears target class in the corpus!");
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() {
+        classNode = new ClassNode();
+        new ClassReader(data.get(index)).accept(classNode, 0);
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        int i = index;
+        index = (i + 1) % names.size();
+
+        int flags = ClassWriter.COMPUTE_MAXS;
+        if (EarsAgent.transform(names.get(i), classNode)) {
+            flags |= ClassWriter.COMPUTE_FRAMES;
+        }
+        ClassWriter writer = new ClassWriter(flags);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+}
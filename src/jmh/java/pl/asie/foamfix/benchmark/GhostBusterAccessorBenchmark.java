@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import net.minecraft.block.Block;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.LongHashMap;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.asie.foamfix.ghostbuster.GhostBusterSafeAccessors;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the block lookups made by ticks patched by GhostBuster: a block and
+ * its four horizontal neighbours, as fluid and grass ticks do, over a 16x16
+ * chunk area. Compares the fused accessors against the previous chunkExists
+ * check followed by World.getBlock.
+ *
+ * A WorldServer cannot be constructed outside a running server, so only the
+ * fields these lookups touch are filled in on uninitialized instances.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GhostBusterAccessorBenchmark {
+    private static final int CHUNKS = 16;
+    private static final int POSITIONS = 4096;
+    private static final int[][] NEIGHBOURS = { { 0, 0 }, { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+
+    @Param({"true", "false"})
+    public boolean fused;
+
+    private WorldServer world;
+    private ChunkProviderServer provider;
+    private int[] xs, zs;
+    private int index;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Unsafe unsafe = (Unsafe) unsafeField.get(null);
+
+        world = (WorldServer) unsafe.allocateInstance(WorldServer.class);
+        provider = (ChunkProviderServer) unsafe.allocateInstance(ChunkProviderServer.class);
+        provider.worldObj = world;
+        provider.loadedChunkHashMap = new LongHashMap();
+        world.theChunkProviderServer = provider;
+        Field chunkProviderField = World.class.getDeclaredField("chunkProvider");
+        chunkProviderField.setAccessible(true);
+        chunkProviderField.set(world, provider);
+
+        for (int cx = 0; cx < CHUNKS; cx++) {
+            for (int cz = 0; cz < CHUNKS; cz++) {
+                Chunk chunk = new Chunk(world, cx, cz);
+                chunk.isChunkLoaded = true;
+                provider.loadedChunkHashMap.add(ChunkCoordIntPair.chunkXZ2Int(cx, cz), chunk);
+            }
+        }
+
+        // Positions include the outer edge, so some neighbours are unloaded.
+        Random random = new Random(1234);
+        xs = new int[POSITIONS];
+        zs = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextInt(CHUNKS * 16);
+            zs[i] = random.nextInt(CHUNKS * 16);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        GhostBusterSafeAccessors.clearCache();
+    }
+
+    private Block getBlockUnfused(int x, int y, int z) {
+        return provider.chunkExists(x >> 4, z >> 4) ? world.getBlock(x, y, z) : Blocks.air;
+    }
+
+    @Benchmark
+    public void getBlockNeighbours(Blackhole blackhole) {
+        int i = index;
+        index = (i + 1) % POSITIONS;
+        for (int[] offset : NEIGHBOURS) {
+            int x = xs[i] + offset[0], z = zs[i] + offset[1];
+            blackhole.consume(fused ? GhostBusterSafeAccessors.getBlock(world, x, 64, z) : getBlockUnfused(x, 64, z));
+        }
+    }
+
+    @Benchmark
+    public boolean isAreaLoaded() {
+        int i = index;
+        index = (i + 1) % POSITIONS;
+        return fused ? GhostBusterSafeAccessors.isAreaLoaded(world, xs[i], 64, zs[i], 1)
+                : world.checkChunksExist(xs[i] - 1, 64, zs[i] - 1, xs[i] + 1, 64, zs[i] + 1);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.MessageFactory;
+import org.apache.logging.log4j.message.ParameterizedMessageFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.foamfix.HackyMessageFactoryWrapper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creating log messages through the Log4J mitigation's message factory
+ * wrapper, against the unwrapped factory, for ordinary messages and ones
+ * containing a lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageFactoryBenchmark {
+    @Param({"true", "false"})
+    public boolean wrapped;
+
+    @Param({"plain", "lookup"})
+    public String message;
+
+    private MessageFactory factory;
+    private String format, param;
+    private Object[] params;
+
+    @Setup
+    public void setup() {
+        factory = new ParameterizedMessageFactory();
+        if (wrapped) {
+            factory = new HackyMessageFactoryWrapper(factory);
+        }
+
+        if ("lookup".equals(message)) {
+            format = "Player {} logged in with entity id {} at ${jndi:ldap://example.invalid/a}";
+            param = "${jndi:ldap://example.invalid/b}";
+        } else {
+            format = "Player {} logged in with entity id {} at ([{}, {}, {}])";
+            param = "Player123";
+        }
+        params = new Object[] { param, 1234, 12.5, 64.0, -30.5 };
+    }
+
+    @Benchmark
+    public Message formatOnly() {
+        return factory.newMessage(format);
+    }
+
+    @Benchmark
+    public Message withParams() {
+        return factory.newMessage(format, params);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs individual patchers on their own, each parsing and writing its target
+ * class, one patcher application per operation. Use -p patcher=<name> to
+ * measure a single patcher; global patchers are replayed over the whole corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PatcherBenchmark {
+    /**
+     * Only patchers whose name contains this string; empty for all of them.
+     */
+    @Param({""})
+    public String patcher;
+
+    private final List<AbstractPatcher> patchers = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<byte[]> data = new ArrayList<>();
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        BugfixModClassTransformer transformer = Corpus.createTransformer();
+        Map<String, byte[]> classes = Corpus.getClasses();
+
+        Map<String, List<AbstractPatcher>> targeted = Corpus.getField(transformer, "patchers");
+        for (Map.Entry<String, List<AbstractPatcher>> entry : targeted.entrySet()) {
+            byte[] bytes = classes.get(entry.getKey());
+            if (bytes != null) {
+                for (AbstractPatcher p : entry.getValue()) {
+                    add(p, entry.getKey(), bytes);
+                }
+            }
+        }
+
+        List<AbstractPatcher> global = Corpus.getField(transformer, "globalPatchers");
+        for (AbstractPatcher p : global) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                add(p, entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (patchers.isEmpty()) {
+            throw new RuntimeException("No patcher matching '" + patcher + "' has a target class in the corpus!");
+        }
+    }
+
+    private void add(AbstractPatcher p, String name, byte[] bytes) {
+        if (p.getPatcherName().contains(patcher)) {
+            patchers.add(p);
+            names.add(name);
+            data.add(bytes);
+        }
+    }
+
+    @Benchmark
+    public byte[] patch() {
+        int i = index;
+        index = (i + 1) % patchers.size();
+        return patchers.get(i).patch(names.get(i), data.get(i));
+    }
+}
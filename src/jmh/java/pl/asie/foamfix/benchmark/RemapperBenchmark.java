@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import cpw.mods.fml.common.asm.transformers.DeobfuscationTransformer;
+import cpw.mods.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
+import net.minecraft.launchwrapper.IClassNameTransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.foamfix.MemoizingClassNameTransformer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the class name lookups LaunchClassLoader makes when loading a class
+ * (untransformName, then transformName) for every corpus class, through FML's
+ * DeobfuscationTransformer with and without FoamFix's memo cache in front.
+ *
+ * The dev workspace has no obfuscated names, so FMLDeobfuscatingRemapper is
+ * given a vanilla-style mapping (a, b, ..., aa, ab, ...) of the corpus classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RemapperBenchmark {
+    @Param({"true", "false"})
+    public boolean memoize;
+
+    private IClassNameTransformer transformer;
+    private Field classNameBiMapField;
+    private Object oldClassNameBiMap;
+    private String[] names;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException, ReflectiveOperationException {
+        BiMap<String, String> classNameBiMap = HashBiMap.create();
+        List<String> nameList = new ArrayList<>();
+        for (String name : Corpus.getClasses().keySet()) {
+            String internalName = name.replace('.', '/');
+            if (internalName.indexOf('$') < 0) {
+                classNameBiMap.put(getObfuscatedName(classNameBiMap.size()), internalName);
+            }
+            nameList.add(name);
+        }
+        names = nameList.toArray(new String[0]);
+
+        classNameBiMapField = FMLDeobfuscatingRemapper.class.getDeclaredField("classNameBiMap");
+        classNameBiMapField.setAccessible(true);
+        oldClassNameBiMap = classNameBiMapField.get(FMLDeobfuscatingRemapper.INSTANCE);
+        classNameBiMapField.set(FMLDeobfuscatingRemapper.INSTANCE, classNameBiMap);
+
+        transformer = new DeobfuscationTransformer();
+        if (memoize) {
+            transformer = new MemoizingClassNameTransformer(transformer);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws ReflectiveOperationException {
+        classNameBiMapField.set(FMLDeobfuscatingRemapper.INSTANCE, oldClassNameBiMap);
+        if (transformer instanceof MemoizingClassNameTransformer) {
+            System.out.println(((MemoizingClassNameTransformer) transformer).getStatistics());
+        }
+    }
+
+    private static String getObfuscatedName(int i) {
+        StringBuilder builder = new StringBuilder();
+        do {
+            builder.insert(0, (char) ('a' + (i % 26)));
+            i = i / 26 - 1;
+        } while (i >= 0);
+        return builder.toString();
+    }
+
+    @Benchmark
+    public String lookup() {
+        int i = index;
+        index = (i + 1) % names.length;
+        return transformer.remapClassName(transformer.unmapClassName(names[i]));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+import pl.asie.foamfix.repack.com.unascribed.ears.common.agent.EarsAgent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the corpus through BugfixModClassTransformer.transform, one class per
+ * operation. "targets" only replays classes FoamFix has a targeted patch for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransformerBenchmark {
+    @Param({"all", "targets"})
+    public String classes;
+
+    @Param({"true", "false"})
+    public boolean globalPatchers;
+
+    @Param({"true", "false"})
+    public boolean copyUntouchedMethods;
+
+    private BugfixModClassTransformer transformer;
+    private String[] names;
+    private byte[][] data;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        transformer = Corpus.createTransformer();
+        transformer.settings.cmCopyUntouchedMethods = copyUntouchedMethods;
+        if (!globalPatchers) {
+            Corpus.<List<?>>getField(transformer, "globalPatchers").clear();
+            Corpus.<List<?>>getField(transformer, "globalPatcherConstants").clear();
+        }
+
+        Map<String, ?> patchers = Corpus.getField(transformer, "patchers");
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+        for (Map.Entry<String, byte[]> entry : Corpus.getClasses().entrySet()) {
+            if ("all".equals(classes) || patchers.containsKey(entry.getKey()) || EarsAgent.isTarget(entry.getKey())) {
+                entries.add(entry);
+            }
+        }
+
+        long size = 0;
+        names = new String[entries.size()];
+        data = new byte[entries.size()][];
+        for (int i = 0; i < entries.size(); i++) {
+            names[i] = entries.get(i).getKey();
+            data[i] = entries.get(i).getValue();
+            size += data[i].length;
+        }
+        System.out.println("Replaying " + names.length + " classes, " + size + " bytes");
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        int i = index;
+        index = (i + 1) % names.length;
+        return transformer.transform(names[i], names[i], data[i]);
+    }
+}
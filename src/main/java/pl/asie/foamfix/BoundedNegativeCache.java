@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A replacement for LaunchClassLoader's sets of names known not to exist
+ * (invalidClasses, negativeResourceCache), keeping only the most recently used
+ * entries and counting how many jar scans it saved.
+ */
+final class BoundedNegativeCache extends AbstractSet<String> {
+    private final String name;
+    private final Map<String, Boolean> map;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+    BoundedNegativeCache(String name, int maxSize) {
+        this.name = name;
+        this.map = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumSize(maxSize)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        evictions.incrementAndGet();
+                    }
+                })
+                .<String, Boolean>build().asMap();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o != null && map.get(o) != null) {
+            hits.incrementAndGet();
+            return true;
+        } else {
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean add(String s) {
+        return map.put(s, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return map.remove(o) != null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return map.keySet().iterator();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    public String getStatistics() {
+        return name + ": " + map.size() + " entries, " + hits.get() + " lookups avoided, "
+                + misses.get() + " passed through, " + evictions.get() + " evictions";
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ForwardingMap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A replacement for LaunchClassLoader's resourceCache which keeps the most
+ * recently used class bytes up to a fixed number of bytes.
+ *
+ * LaunchClassLoader.getClassBytes calls containsKey() and then get(); the value
+ * found by containsKey() is remembered per thread, so that an eviction between
+ * the two calls cannot make get() return null for a class that exists.
+ */
+final class BoundedResourceCache extends ForwardingMap<String, byte[]> {
+    private static final class Lookup {
+        private Object key;
+        private byte[] value;
+    }
+
+    private final long maxBytes;
+    private final Cache<String, byte[]> cache;
+    private final Map<String, byte[]> map;
+    private final ThreadLocal<Lookup> lastLookup = ThreadLocal.withInitial(Lookup::new);
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), evictedBytes = new AtomicLong();
+
+    BoundedResourceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.cache = CacheBuilder.newBuilder()
+                // Guava splits the budget between segments; class loading is mostly
+                // single-threaded anyway, so use one segment for a global LRU order.
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher((String key, byte[] value) -> value.length)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        evictions.incrementAndGet();
+                        byte[] value = (byte[]) notification.getValue();
+                        if (value != null) {
+                            evictedBytes.addAndGet(value.length);
+                        }
+                    }
+                })
+                .build();
+        this.map = cache.asMap();
+    }
+
+    @Override
+    protected Map<String, byte[]> delegate() {
+        return map;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        byte[] value = key != null ? map.get(key) : null;
+        Lookup lookup = lastLookup.get();
+        if (value != null) {
+            hits.incrementAndGet();
+            lookup.key = key;
+            lookup.value = value;
+            return true;
+        } else {
+            misses.incrementAndGet();
+            lookup.key = null;
+            lookup.value = null;
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        Lookup lookup = lastLookup.get();
+        if (lookup.key != null && lookup.key.equals(key)) {
+            byte[] value = lookup.value;
+            lookup.key = null;
+            lookup.value = null;
+            return value;
+        }
+        return key != null ? map.get(key) : null;
+    }
+
+    @Override
+    public byte[] put(String key, byte[] value) {
+        // Anything over the budget would be evicted right away.
+        if (value.length > maxBytes) {
+            return null;
+        }
+        return map.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends byte[]> m) {
+        for (Map.Entry<? extends String, ? extends byte[]> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public String getStatistics() {
+        long size = 0;
+        for (byte[] value : map.values()) {
+            size += value.length;
+        }
+        return map.size() + " entries, " + (size >> 10) + "/" + (maxBytes >> 10) + " KB, "
+                + hits.get() + " hits, " + misses.get() + " misses, "
+                + evictions.get() + " evictions (" + (evictedBytes.get() >> 10) + " KB)";
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import cpw.mods.fml.common.discovery.ASMDataTable;
+import cpw.mods.fml.relauncher.ReflectionHelper;
+import org.apache.logging.log4j.Logger;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Called at the start of ASMDataTable.addASMData. Interns the annotation, class
+ * and member names of every entry, and swaps the table's HashMultimap for one
+ * which keeps each annotation's entries in an array.
+ *
+ * ASMData does not override equals(), and addASMData always adds a new one, so
+ * the array-backed sets do not need to check for duplicates.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public final class CompactASMDataTable {
+    // A String and its char[] header on a 64-bit Java 8 JVM with compressed
+    // oops; only used to estimate the duplicate strings dropped by interning.
+    private static final int STRING_SIZE = 24 + 16;
+
+    private static final Map<String, String> strings = new HashMap<>();
+    private static WeakReference<ASMDataTable> currentTable = new WeakReference<>(null);
+    private static long stringsSeen, stringsInterned, internedBytes;
+    /** Keeps the copy being measured by {@link #report(Logger)} reachable across garbage collections. */
+    private static Object measuredCopy;
+
+    private CompactASMDataTable() {
+
+    }
+
+    private static final class CompactSet<V> extends AbstractSet<V> {
+        private Object[] values = new Object[2];
+        private int size;
+
+        @Override
+        public boolean add(V value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            }
+            values[size++] = value;
+            return true;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new Iterator<V>() {
+                private int next, last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public V next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next++;
+                    return (V) values[last];
+                }
+
+                @Override
+                public void remove() {
+                    if (last < 0) {
+                        throw new IllegalStateException();
+                    }
+                    System.arraycopy(values, last + 1, values, last, size - last - 1);
+                    values[--size] = null;
+                    next = last;
+                    last = -1;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    public static synchronized String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+
+        stringsSeen++;
+        String interned = strings.putIfAbsent(s, s);
+        if (interned != null) {
+            stringsInterned++;
+            internedBytes += STRING_SIZE + 2 * s.length();
+            return interned;
+        }
+        return s;
+    }
+
+    public static synchronized void onAddASMData(ASMDataTable table) {
+        if (currentTable.get() == table) {
+            return;
+        }
+
+        currentTable = new WeakReference<>(table);
+        try {
+            Field field = ReflectionHelper.findField(ASMDataTable.class, "globalAnnotationData");
+            SetMultimap oldData = (SetMultimap) field.get(table);
+            SetMultimap newData = Multimaps.newSetMultimap(new HashMap<>(), CompactSet::new);
+            newData.putAll(oldData);
+            field.set(table, newData);
+        } catch (Exception e) {
+            BugfixModClassTransformer.instance.logger.warn("Could not compact the ASM data table; leaving it as it is.", e);
+        }
+    }
+
+    private static SetMultimap getData(ASMDataTable table) throws Exception {
+        return (SetMultimap) ReflectionHelper.findField(ASMDataTable.class, "globalAnnotationData").get(table);
+    }
+
+    /**
+     * @return The heap in use after a full garbage collection, in bytes. Only
+     * as exact as System.gc() is thorough.
+     */
+    private static long getUsedHeapAfterGC() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Logs the size of the ASM data table, and the heap taken by its compact
+     * sets and by an equivalent HashMultimap, measured by building a copy of
+     * each between full garbage collections.
+     */
+    public static synchronized void report(Logger logger) {
+        ASMDataTable table = currentTable.get();
+        if (table == null) {
+            return;
+        }
+
+        try {
+            SetMultimap data = getData(table);
+            long entries = data.size();
+            long keys = data.keySet().size();
+
+            long before = getUsedHeapAfterGC();
+            measuredCopy = HashMultimap.create(data);
+            long hashMultimapBytes = getUsedHeapAfterGC() - before;
+            measuredCopy = null;
+
+            before = getUsedHeapAfterGC();
+            SetMultimap copy = Multimaps.newSetMultimap(new HashMap<>(), CompactSet::new);
+            copy.putAll(data);
+            measuredCopy = copy;
+            long compactBytes = getUsedHeapAfterGC() - before;
+            measuredCopy = null;
+
+            logger.info("ASM data table: " + entries + " entries under " + keys + " annotations; measured " + (compactBytes >> 10)
+                    + " KB for the compact sets against " + (hashMultimapBytes >> 10) + " KB for a HashMultimap");
+            logger.info("ASM data table: interned " + stringsInterned + " of " + stringsSeen + " strings (" + strings.size() + " unique), "
+                    + "an estimated ~" + (internedBytes >> 10) + " KB of duplicates");
+        } catch (Exception e) {
+            logger.warn("Could not report on the ASM data table!", e);
+        }
+
+        // Discovery is over; the table itself keeps the interned strings alive.
+        strings.clear();
+    }
+
+    /**
+     * Empties the ASM data table, including FML's per-mod copies of it, and
+     * logs the heap this freed. Mods asking for annotation data afterwards
+     * will find none.
+     */
+    public static synchronized void release(Logger logger) {
+        ASMDataTable table = currentTable.get();
+        if (table == null) {
+            return;
+        }
+
+        try {
+            SetMultimap data = getData(table);
+            long entries = data.size();
+            Field containerDataField = ReflectionHelper.findField(ASMDataTable.class, "containerAnnotationData");
+            Map containerData = (Map) containerDataField.get(table);
+            long containerEntries = 0;
+            if (containerData != null) {
+                for (Object o : containerData.values()) {
+                    containerEntries += ((SetMultimap) o).size();
+                }
+            }
+
+            long before = getUsedHeapAfterGC();
+            data.clear();
+            containerDataField.set(table, null);
+            containerData = null;
+            long freed = before - getUsedHeapAfterGC();
+            logger.info("Released ASM data table: " + entries + " entries and " + containerEntries + " per-mod entries, measured " + (freed >> 10) + " KB freed");
+        } catch (Exception e) {
+            logger.warn("Could not release the ASM data table!", e);
+        }
+    }
+}
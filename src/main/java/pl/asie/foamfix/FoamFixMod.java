@@ -27,6 +27,7 @@ import cpw.mods.fml.common.FMLCommonHandler;
 import cpw.mods.fml.common.Mod;
 import cpw.mods.fml.common.SidedProxy;
 import cpw.mods.fml.common.event.FMLInitializationEvent;
+import cpw.mods.fml.common.event.FMLLoadCompleteEvent;
 import cpw.mods.fml.common.event.FMLPreInitializationEvent;
 import cpw.mods.fml.common.event.FMLServerStartingEvent;
 import cpw.mods.fml.common.event.FMLServerStoppedEvent;
@@ -38,7 +39,9 @@ import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
 import pl.asie.foamfix.bugfixmod.mod.ToolDesyncFixEventHandler;
 import pl.asie.foamfix.bugfixmod.mod.ArrowDingTweakEventHandler;
 import pl.asie.foamfix.ghostbuster.CommandGhostBuster;
+import pl.asie.foamfix.ghostbuster.GhostBusterLearner;
 import pl.asie.foamfix.ghostbuster.GhostBusterLogger;
+import pl.asie.foamfix.ghostbuster.GhostBusterSafeAccessors;
 import pl.asie.foamfix.repack.com.unascribed.ears.Ears;
 
 import java.net.URLClassLoader;
@@ -98,21 +101,31 @@ public class FoamFixMod {
 
     @Mod.EventHandler
     public void init(FMLInitializationEvent evt) {
-        if (BugfixModClassTransformer.instance.settings.lwWeakenResourceCache) {
+        if (BugfixModClassTransformer.instance.settings.lwWeakenResourceCache && BugfixModClassTransformer.instance.settings.lwResourceCacheSize <= 0) {
             logger.info("Weakening LaunchWrapper resource cache...");
             LaunchWrapperRuntimeFix.weakenResourceCache();
         }
     }
 
+    @Mod.EventHandler
+    public void loadComplete(FMLLoadCompleteEvent evt) {
+        BugfixModClassTransformer.instance.onLoadComplete();
+    }
+
     @Mod.EventHandler
     public void serverStarting(FMLServerStartingEvent event) {
         if (BugfixModClassTransformer.instance.settings.gbEnableDebugger) {
             event.registerServerCommand(new CommandGhostBuster());
+            if (BugfixModClassTransformer.instance.settings.gbLearnMinutes > 0) {
+                GhostBusterLearner.start(BugfixModClassTransformer.instance.settings.gbLearnMinutes);
+            }
         }
     }
 
     @Mod.EventHandler
     public void serverStopped(FMLServerStoppedEvent event) {
+        GhostBusterLearner.stop();
         GhostBusterLogger.saveLogFile();
+        GhostBusterSafeAccessors.clearCache();
     }
 }
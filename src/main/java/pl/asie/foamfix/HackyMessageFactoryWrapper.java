@@ -14,8 +14,15 @@ public class HackyMessageFactoryWrapper implements MessageFactory {
 		this.delegate = delegate;
 	}
 
+	/**
+	 * Whether fixLogger should wrap the message factory; false if the hook is only
+	 * installed for {@link LogDedupeFilter}.
+	 */
+	public static boolean wrapMessageFactory = true;
+
 	public static Logger fixLogger(Logger logger) {
-		if (logger instanceof org.apache.logging.log4j.spi.AbstractLogger) {
+		LogDedupeFilter.register(logger);
+		if (wrapMessageFactory && logger instanceof org.apache.logging.log4j.spi.AbstractLogger) {
 			try {
 				Field f = org.apache.logging.log4j.spi.AbstractLogger.class.getDeclaredField("messageFactory");
 				f.setAccessible(true);
@@ -34,10 +41,31 @@ public class HackyMessageFactoryWrapper implements MessageFactory {
 		Logger logger = fixLogger(LogManager.getLogger());
 	}
 
+	/**
+	 * Equivalent to s.replaceAll("\\$\\{", "{"), but returns s itself,
+	 * without allocating, if it does not contain "${".
+	 */
+	static String sanitize(String s) {
+		int i = s.indexOf("${");
+		if (i < 0) {
+			return s;
+		}
+
+		StringBuilder builder = new StringBuilder(s.length() - 1);
+		int start = 0;
+		do {
+			builder.append(s, start, i);
+			start = i + 1;
+			i = s.indexOf("${", i + 2);
+		} while (i >= 0);
+		builder.append(s, start, s.length());
+		return builder.toString();
+	}
+
 	@Override
 	public Message newMessage(Object message) {
 		if (message instanceof String) {
-			message = ((String) message).replaceAll("\\$\\{", "{");
+			message = sanitize((String) message);
 		}
 		return this.delegate.newMessage(message);
 	}
@@ -45,7 +73,7 @@ public class HackyMessageFactoryWrapper implements MessageFactory {
 	@Override
 	public Message newMessage(String message) {
 		if (message != null) {
-			message = message.replaceAll("\\$\\{", "{");
+			message = sanitize(message);
 		}
 		return this.delegate.newMessage(message);
 	}
@@ -53,13 +81,21 @@ public class HackyMessageFactoryWrapper implements MessageFactory {
 	@Override
 	public Message newMessage(String message, Object... params) {
 		if (message != null) {
-			message = message.replaceAll("\\$\\{", "{");
+			message = sanitize(message);
 		}
+		// Leave the caller's array alone; copy it only if a parameter changes.
+		Object[] newParams = params;
 		for (int i = 0; i < params.length; i++) {
 			if (params[i] instanceof String) {
-				params[i] = ((String) params[i]).replaceAll("\\$\\{", "{");
+				String param = sanitize((String) params[i]);
+				if (param != params[i]) {
+					if (newParams == params) {
+						newParams = params.clone();
+					}
+					newParams[i] = param;
+				}
 			}
 		}
-		return this.delegate.newMessage(message, params);
+		return this.delegate.newMessage(message, newParams);
 	}
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import com.google.common.collect.ForwardingMap;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps LaunchClassLoader's resourceCache so that getClassBytes, which checks
+ * the cache before searching the class path, finds class bytes through a
+ * {@link JarIndex} instead of probing every jar in turn.
+ *
+ * Only jars at the start of the class path which the index covers, in the same
+ * order, are trusted; anything else falls through to LaunchWrapper.
+ */
+final class IndexedResourceCache extends ForwardingMap<String, byte[]> {
+    private static final class Lookup {
+        private Object key;
+        private byte[] value;
+    }
+
+    private final Map<String, byte[]> delegate;
+    private final LaunchClassLoader loader;
+    private final ThreadLocal<Lookup> lastLookup = ThreadLocal.withInitial(Lookup::new);
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    private volatile JarIndex index;
+    private int sourceCount = -1, validPrefix;
+
+    IndexedResourceCache(Map<String, byte[]> delegate, LaunchClassLoader loader, JarIndex index) {
+        this.delegate = delegate;
+        this.loader = loader;
+        this.index = index;
+    }
+
+    static List<File> getClassPath(LaunchClassLoader loader) {
+        List<URL> sources = new ArrayList<>(loader.getSources());
+        List<File> files = new ArrayList<>(sources.size());
+        for (URL url : sources) {
+            File file = null;
+            try {
+                if ("file".equals(url.getProtocol())) {
+                    file = new File(url.toURI());
+                }
+            } catch (Exception e) {
+                // pass
+            }
+            // The index only covers the leading run of jar files.
+            if (file == null || !file.isFile()) {
+                break;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    @Override
+    protected Map<String, byte[]> delegate() {
+        return delegate;
+    }
+
+    JarIndex getIndex() {
+        return index;
+    }
+
+    void setIndex(JarIndex index) {
+        synchronized (this) {
+            this.index = index;
+            sourceCount = -1;
+        }
+    }
+
+    private synchronized int getValidPrefix(JarIndex index) {
+        int count = loader.getSources().size();
+        if (count != sourceCount) {
+            validPrefix = index.getValidPrefix(getClassPath(loader));
+            sourceCount = count;
+        }
+        return validPrefix;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Lookup lookup = lastLookup.get();
+        lookup.key = null;
+        lookup.value = null;
+        if (delegate.containsKey(key)) {
+            return true;
+        }
+
+        // Names without a dot are remapped by LaunchWrapper on Windows; leave them be.
+        if (key instanceof String && ((String) key).indexOf('.') >= 0) {
+            JarIndex index = this.index;
+            String path = ((String) key).replace('.', '/').concat(".class");
+            int jar = index.find(path);
+            if (jar >= 0 && jar < getValidPrefix(index)) {
+                byte[] value = index.read(jar, path);
+                if (value != null) {
+                    hits.incrementAndGet();
+                    delegate.put((String) key, value);
+                    lookup.key = key;
+                    lookup.value = value;
+                    return true;
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        Lookup lookup = lastLookup.get();
+        if (lookup.key != null && lookup.key.equals(key)) {
+            byte[] value = lookup.value;
+            lookup.key = null;
+            lookup.value = null;
+            return value;
+        }
+        return delegate.get(key);
+    }
+
+    public String getStatistics() {
+        JarIndex index = this.index;
+        return index.getEntryCount() + " entries in " + index.getJars().size() + " jars, "
+                + hits.get() + " classes read through the index, " + misses.get() + " left to LaunchWrapper";
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A memory-mapped index from jar entry names to the first jar, in class path
+ * order, which contains them.
+ *
+ * The file starts with the indexed jars (path, size, modification time), which
+ * are checked on load; any difference discards the index. It is followed by
+ * (name offset, jar) pairs sorted by entry name, binary searched on lookup,
+ * and the UTF-8 entry names themselves.
+ *
+ * Each rebuild is written to a new file named after its generation, and moved
+ * into place once complete, so that no file is ever written to while mapped;
+ * Windows refuses to truncate a file with a live mapping. Older generations
+ * are deleted when they are no longer mapped. Only the jar table is read
+ * before the index is validated, so stale indexes are never mapped.
+ */
+final class JarIndex {
+    private static final int MAGIC = 0x46464a49; // FFJI
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8 + 8 + 4 + 4 + 4;
+    private static final int ENTRY_LENGTH = 8;
+
+    private final File directory;
+    private final Logger logger;
+    private final List<File> jars;
+    private final ZipFile[] zipFiles;
+    private final long generation;
+    private final ByteBuffer index;
+    private final int entries, entriesOffset, namesOffset;
+    private volatile boolean closed;
+
+    private JarIndex(File directory, Logger logger, List<File> jars, long generation, ByteBuffer index) {
+        this.directory = directory;
+        this.logger = logger;
+        this.jars = jars;
+        this.zipFiles = new ZipFile[jars.size()];
+        this.generation = generation;
+        this.index = index;
+        this.entries = index.getInt(8 + 8 + 4);
+        this.entriesOffset = index.getInt(8 + 8 + 4 + 4);
+        this.namesOffset = entriesOffset + entries * ENTRY_LENGTH;
+    }
+
+    /**
+     * Maps the newest up-to-date index in the given directory, or builds a new
+     * one from the given jars if there is none.
+     */
+    static JarIndex open(File directory, List<File> jars, Logger logger) {
+        long newest = getNewestGeneration(directory);
+        JarIndex result = newest >= 0 ? load(directory, newest, logger) : null;
+
+        if (result != null && result.getValidPrefix(jars) >= jars.size()) {
+            deleteOlderGenerations(directory, newest);
+            return result;
+        } else if (result != null) {
+            JarIndex index = result.rebuild(jars);
+            if (index != result) {
+                result.close();
+            }
+            return index;
+        } else {
+            return build(directory, newest + 1, jars, logger);
+        }
+    }
+
+    /**
+     * Builds a new index for the given jars, as the next generation.
+     * The caller should {@link #close()} this index once it has switched over.
+     */
+    JarIndex rebuild(List<File> jars) {
+        JarIndex index = build(directory, generation + 1, jars, logger);
+        return index != null ? index : this;
+    }
+
+    /**
+     * Closes the jars opened for reading. Reads from a closed index return null.
+     *
+     * The mapped index is left for the garbage collector to unmap, as other
+     * threads may still be searching it.
+     */
+    synchronized void close() {
+        closed = true;
+        for (int i = 0; i < zipFiles.length; i++) {
+            if (zipFiles[i] != null) {
+                try {
+                    zipFiles[i].close();
+                } catch (IOException e) {
+                    logger.warn("Could not close " + jars.get(i) + "!", e);
+                }
+                zipFiles[i] = null;
+            }
+        }
+    }
+
+    List<File> getJars() {
+        return jars;
+    }
+
+    int getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * @return How many leading jars of the given class path are indexed, in the same order.
+     */
+    int getValidPrefix(List<File> classPath) {
+        int i = 0;
+        while (i < classPath.size() && i < jars.size() && jars.get(i).equals(classPath.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return The position of the first jar containing the given entry, or -1.
+     */
+    int find(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = entries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = entriesOffset + mid * ENTRY_LENGTH;
+            int cmp = compareName(index.getInt(pos), key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return index.getInt(pos + 4);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The contents of the given entry of the given jar, or null if it could not be read.
+     */
+    byte[] read(int jar, String name) {
+        try {
+            ZipFile zipFile = getZipFile(jar);
+            if (zipFile == null) {
+                return null;
+            }
+            ZipEntry entry = zipFile.getEntry(name);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream stream = zipFile.getInputStream(entry)) {
+                return ByteStreams.toByteArray(stream);
+            }
+        } catch (IOException e) {
+            // A read racing close() fails; the caller falls back to LaunchWrapper either way.
+            if (!closed) {
+                logger.warn("Could not read " + name + " from " + jars.get(jar) + "!", e);
+            }
+            return null;
+        }
+    }
+
+    private synchronized ZipFile getZipFile(int jar) throws IOException {
+        if (closed) {
+            return null;
+        }
+        if (zipFiles[jar] == null) {
+            zipFiles[jar] = new ZipFile(jars.get(jar));
+        }
+        return zipFiles[jar];
+    }
+
+    private int compareName(int offset, byte[] key) {
+        int pos = namesOffset + offset;
+        int length = index.getShort(pos) & 0xFFFF;
+        pos += 2;
+        for (int i = 0; i < length && i < key.length; i++) {
+            int cmp = (index.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareKeys(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static File getIndexFile(File directory, long generation) {
+        return new File(directory, "jars." + generation + ".idx");
+    }
+
+    /**
+     * @return The generation of the given file name, or -1 if it is not an index.
+     */
+    private static long getGeneration(String name) {
+        if (name.startsWith("jars.") && name.endsWith(".idx")) {
+            try {
+                return Long.parseLong(name.substring(5, name.length() - 4));
+            } catch (NumberFormatException e) {
+                // pass
+            }
+        }
+        return -1;
+    }
+
+    private static long getNewestGeneration(File directory) {
+        long newest = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                newest = Math.max(newest, getGeneration(name));
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Deletes the index files older than the given generation. Files still
+     * mapped by this process cannot be deleted on Windows; those are left for
+     * the next launch.
+     */
+    private static void deleteOlderGenerations(File directory, long generation) {
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                long g = getGeneration(name);
+                if (g >= 0 && g < generation) {
+                    new File(directory, name).delete();
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static JarIndex load(File directory, long expectedGeneration, Logger logger) {
+        File indexFile = getIndexFile(directory, expectedGeneration);
+        if (!indexFile.isFile() || indexFile.length() < HEADER_LENGTH) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            // Validate from a heap copy of the header and jar table; only up-to-date indexes are mapped.
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            long generation = header.getLong();
+            int jarCount = header.getInt();
+            int entries = header.getInt();
+            int entriesOffset = header.getInt();
+            if (generation != expectedGeneration || jarCount < 0 || entries < 0 || entriesOffset < HEADER_LENGTH
+                    || (long) entriesOffset + (long) entries * ENTRY_LENGTH > size) {
+                return null;
+            }
+
+            ByteBuffer jarTable = ByteBuffer.allocate(entriesOffset - HEADER_LENGTH);
+            readFully(channel, jarTable, HEADER_LENGTH);
+            List<File> jars = new ArrayList<>(jarCount);
+            for (int i = 0; i < jarCount; i++) {
+                long length = jarTable.getLong();
+                long lastModified = jarTable.getLong();
+                byte[] path = new byte[jarTable.getShort() & 0xFFFF];
+                jarTable.get(path);
+                File jar = new File(new String(path, StandardCharsets.UTF_8));
+                if (jar.length() != length || jar.lastModified() != lastModified) {
+                    logger.info("Jar index out of date (" + jar + " changed), rebuilding...");
+                    return null;
+                }
+                jars.add(jar);
+            }
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new JarIndex(directory, logger, Collections.unmodifiableList(jars), generation, index);
+        } catch (Exception e) {
+            logger.warn("Could not read jar index " + indexFile + "!", e);
+            return null;
+        }
+    }
+
+    private static JarIndex build(File directory, long generation, List<File> jars, Logger logger) {
+        long time = System.currentTimeMillis();
+        List<byte[]> names = new ArrayList<>();
+        List<Integer> nameJars = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int namesLength = 0;
+
+        for (int i = 0; i < jars.size(); i++) {
+            try (ZipFile zipFile = new ZipFile(jars.get(i))) {
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry entry = zipEntries.nextElement();
+                    // Earlier jars on the class path shadow later ones.
+                    if (!entry.isDirectory() && seen.add(entry.getName())) {
+                        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+                        if (name.length <= 0xFFFF) {
+                            names.add(name);
+                            nameJars.add(i);
+                            namesLength += 2 + name.length;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Could not index " + jars.get(i) + "; indexing only the jars before it.", e);
+                jars = jars.subList(0, i);
+                break;
+            }
+        }
+
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareKeys(names.get(a), names.get(b)));
+
+        List<byte[]> paths = new ArrayList<>(jars.size());
+        int jarsLength = 0;
+        for (File jar : jars) {
+            byte[] path = jar.getPath().getBytes(StandardCharsets.UTF_8);
+            paths.add(path);
+            jarsLength += 8 + 8 + 2 + path.length;
+        }
+
+        int entriesOffset = HEADER_LENGTH + jarsLength;
+        ByteBuffer data = ByteBuffer.allocate(entriesOffset + order.length * ENTRY_LENGTH + namesLength);
+        data.putInt(MAGIC);
+        data.putInt(FORMAT_VERSION);
+        data.putLong(generation);
+        data.putInt(jars.size());
+        data.putInt(order.length);
+        data.putInt(entriesOffset);
+        for (int i = 0; i < jars.size(); i++) {
+            data.putLong(jars.get(i).length());
+            data.putLong(jars.get(i).lastModified());
+            data.putShort((short) paths.get(i).length);
+            data.put(paths.get(i));
+        }
+        int nameOffset = 0;
+        for (int i : order) {
+            data.putInt(nameOffset);
+            data.putInt(nameJars.get(i));
+            nameOffset += 2 + names.get(i).length;
+        }
+        for (int i : order) {
+            data.putShort((short) names.get(i).length);
+            data.put(names.get(i));
+        }
+        data.flip();
+
+        File indexFile = getIndexFile(directory, generation);
+        File tmpFile = new File(directory, indexFile.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write jar index " + indexFile + "!", e);
+            tmpFile.delete();
+            return null;
+        }
+
+        JarIndex index = load(directory, generation, logger);
+        if (index != null) {
+            deleteOlderGenerations(directory, generation);
+            logger.info("Indexed " + order.length + " entries in " + jars.size() + " jars in " + (System.currentTimeMillis() - time) + " ms");
+        }
+        return index;
+    }
+}
@@ -25,21 +25,160 @@ package pl.asie.foamfix;
 
 import com.google.common.cache.CacheBuilder;
 import cpw.mods.fml.relauncher.ReflectionHelper;
+import net.minecraft.launchwrapper.IClassNameTransformer;
 import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.Manifest;
 
 @SuppressWarnings({"rawtypes", "unchecked"})
 public final class LaunchWrapperRuntimeFix {
+    private static BoundedResourceCache boundedResourceCache;
+    private static IndexedResourceCache indexedResourceCache;
+    private static MemoizingClassNameTransformer memoizingClassNameTransformer;
+    private static final List<BoundedNegativeCache> negativeCaches = new ArrayList<>();
+
     private LaunchWrapperRuntimeFix() {
 
     }
 
+    /**
+     * Replace LaunchWrapper's byte[] resource cache, which otherwise keeps the bytes
+     * of every class ever loaded, with one limited to the given amount of bytes.
+     */
+    public static void limitResourceCache(long maxBytes) {
+        try {
+            LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
+
+            Field resourceCacheField = ReflectionHelper.findField(LaunchClassLoader.class, "resourceCache");
+            Map oldResourceCache = (Map) resourceCacheField.get(loader);
+            BoundedResourceCache newResourceCache = new BoundedResourceCache(maxBytes);
+            newResourceCache.putAll(oldResourceCache);
+            resourceCacheField.set(loader, newResourceCache);
+            boundedResourceCache = newResourceCache;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Statistics of the cache installed by {@link #limitResourceCache(long)}, or null.
+     */
+    public static String getResourceCacheStatistics() {
+        return boundedResourceCache != null ? boundedResourceCache.getStatistics() : null;
+    }
+
+    /**
+     * Replace LaunchWrapper's unbounded sets of classes and resources known to be
+     * missing with size-limited ones which count the jar scans they avoid.
+     */
+    public static void limitNegativeCaches(int maxSize) {
+        LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
+        for (String fieldName : new String[] { "invalidClasses", "negativeResourceCache" }) {
+            try {
+                Field field = ReflectionHelper.findField(LaunchClassLoader.class, fieldName);
+                Set oldCache = (Set) field.get(loader);
+                BoundedNegativeCache newCache = new BoundedNegativeCache(fieldName, maxSize);
+                synchronized (loader) {
+                    newCache.addAll(oldCache);
+                    field.set(loader, newCache);
+                }
+                negativeCaches.add(newCache);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wrap LaunchWrapper's resource cache so that class bytes are read from the
+     * jar named by a memory-mapped index of the class path, kept in the given directory.
+     */
+    public static void installJarIndex(File directory, Logger logger) {
+        try {
+            LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
+
+            JarIndex index = JarIndex.open(directory, IndexedResourceCache.getClassPath(loader), logger);
+            if (index == null) {
+                return;
+            }
+
+            Field resourceCacheField = ReflectionHelper.findField(LaunchClassLoader.class, "resourceCache");
+            synchronized (loader) {
+                indexedResourceCache = new IndexedResourceCache((Map) resourceCacheField.get(loader), loader, index);
+                resourceCacheField.set(loader, indexedResourceCache);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Re-index the class path if jars were added to it since the index was built,
+     * so that the next launch finds them in the index from the start.
+     */
+    public static void updateJarIndex() {
+        if (indexedResourceCache != null) {
+            LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
+            JarIndex index = indexedResourceCache.getIndex();
+            List<File> classPath = IndexedResourceCache.getClassPath(loader);
+            if (index.getValidPrefix(classPath) < classPath.size()) {
+                JarIndex newIndex = index.rebuild(classPath);
+                if (newIndex != index) {
+                    indexedResourceCache.setIndex(newIndex);
+                    index.close();
+                }
+            }
+        }
+    }
+
+    public static String getJarIndexStatistics() {
+        return indexedResourceCache != null ? indexedResourceCache.getStatistics() : null;
+    }
+
+    /**
+     * Put a memo cache in front of LaunchClassLoader's class name transformer.
+     */
+    public static boolean memoizeClassNameTransformer() {
+        try {
+            LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
+
+            Field renameTransformerField = ReflectionHelper.findField(LaunchClassLoader.class, "renameTransformer");
+            synchronized (loader) {
+                IClassNameTransformer renameTransformer = (IClassNameTransformer) renameTransformerField.get(loader);
+                if (renameTransformer == null || renameTransformer instanceof MemoizingClassNameTransformer) {
+                    return false;
+                }
+                memoizingClassNameTransformer = new MemoizingClassNameTransformer(renameTransformer);
+                renameTransformerField.set(loader, memoizingClassNameTransformer);
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static String getClassNameTransformerStatistics() {
+        return memoizingClassNameTransformer != null ? memoizingClassNameTransformer.getStatistics() : null;
+    }
+
+    public static List<String> getNegativeCacheStatistics() {
+        List<String> list = new ArrayList<>();
+        for (BoundedNegativeCache cache : negativeCaches) {
+            list.add(cache.getStatistics());
+        }
+        return list;
+    }
+
     public static void weakenResourceCache() {
         try {
             LaunchClassLoader loader = (LaunchClassLoader) LaunchWrapperRuntimeFix.class.getClassLoader();
@@ -48,6 +187,10 @@ public final class LaunchWrapperRuntimeFix {
             Map oldResourceCache = (Map) resourceCacheField.get(loader);
             Map newResourceCache = CacheBuilder.newBuilder().weakValues().build().asMap();
             newResourceCache.putAll(oldResourceCache);
+            if (indexedResourceCache != null) {
+                indexedResourceCache = new IndexedResourceCache(newResourceCache, loader, indexedResourceCache.getIndex());
+                newResourceCache = indexedResourceCache;
+            }
             resourceCacheField.set(loader, newResourceCache);
         } catch (Exception e) {
             e.printStackTrace();
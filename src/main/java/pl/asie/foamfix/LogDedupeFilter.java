@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.filter.AbstractFilter;
+import org.apache.logging.log4j.message.Message;
+
+import java.beans.PropertyChangeListener;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collapses repeated log messages from loggers passed through
+ * {@link HackyMessageFactoryWrapper#fixLogger}. Messages are considered similar if
+ * they come from the same logger at the same level, with the same format string
+ * (so "Skipping Entity with id {}" matches regardless of the id) and the same
+ * exception type and throw site.
+ *
+ * The first burstSize similar messages in each window are let through; the rest
+ * are dropped before they are formatted, and counted in an "N similar messages
+ * suppressed" line logged once the window is over.
+ *
+ * The filter is installed on the logging configuration, which checks it before
+ * any message is created, and ignores loggers which were not registered.
+ */
+public final class LogDedupeFilter extends AbstractFilter {
+    private static final int MAX_KEYS = 4096;
+
+    private static final class Key {
+        private final String logger;
+        private final Level level;
+        private final String format;
+        private final String throwable;
+        private final int hashCode;
+
+        private Key(String logger, Level level, String format, Throwable t) {
+            this.logger = logger;
+            this.level = level;
+            this.format = format;
+            if (t != null) {
+                StackTraceElement[] trace = t.getStackTrace();
+                this.throwable = trace.length > 0 ? t.getClass().getName() + "@" + trace[0] : t.getClass().getName();
+            } else {
+                this.throwable = null;
+            }
+            int h = logger.hashCode();
+            h = h * 31 + level.hashCode();
+            h = h * 31 + (format != null ? format.hashCode() : 0);
+            h = h * 31 + (throwable != null ? throwable.hashCode() : 0);
+            this.hashCode = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hashCode == other.hashCode && logger.equals(other.logger) && level == other.level
+                    && (format != null ? format.equals(other.format) : other.format == null)
+                    && (throwable != null ? throwable.equals(other.throwable) : other.throwable == null);
+        }
+
+        @Override
+        public String toString() {
+            return throwable != null ? format + " (" + throwable + ")" : format;
+        }
+    }
+
+    private static final class Window {
+        private final Logger logger;
+        private long start;
+        private int count;
+        private int suppressed;
+
+        private Window(Logger logger, long start) {
+            this.logger = logger;
+            this.start = start;
+        }
+    }
+
+    private static LogDedupeFilter instance;
+    private static Configuration installedConfiguration;
+    private static final Set<LoggerContext> listenedContexts = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final int burstSize;
+    private final long windowNanos;
+    private final Set<String> loggers = ConcurrentHashMap.newKeySet();
+    private final Map<Key, Window> windows = new ConcurrentHashMap<>();
+    private final ThreadLocal<Boolean> reporting = new ThreadLocal<>();
+    private volatile long lastSweep;
+    private long totalSuppressed;
+
+    private LogDedupeFilter(int burstSize, long windowNanos) {
+        this.burstSize = burstSize;
+        this.windowNanos = windowNanos;
+        this.lastSweep = System.nanoTime();
+    }
+
+    public static void configure(int burstSize, int windowSeconds) {
+        instance = new LogDedupeFilter(burstSize, windowSeconds * 1000000000L);
+    }
+
+    /**
+     * Called by {@link HackyMessageFactoryWrapper#fixLogger}.
+     */
+    static void register(org.apache.logging.log4j.Logger logger) {
+        LogDedupeFilter filter = instance;
+        if (filter == null || !(logger instanceof Logger)) {
+            return;
+        }
+
+        filter.loggers.add(logger.getName());
+        LoggerContext context = ((Logger) logger).getContext();
+        synchronized (LogDedupeFilter.class) {
+            install(filter, context.getConfiguration());
+            if (listenedContexts.add(context)) {
+                listenForReconfiguration(filter, context);
+            }
+        }
+    }
+
+    private static synchronized void install(LogDedupeFilter filter, Configuration configuration) {
+        // Reconfiguring Log4J replaces the configuration, and with it the filter.
+        if (configuration != installedConfiguration) {
+            configuration.addFilter(filter);
+            installedConfiguration = configuration;
+        }
+    }
+
+    /**
+     * Loggers are usually fetched once, so re-adding the filter only on the next
+     * register call would leave it out after a reconfiguration. Log4J versions
+     * which announce configuration changes get the filter re-added right away;
+     * on others it returns with the next fixLogger call.
+     */
+    private static void listenForReconfiguration(LogDedupeFilter filter, LoggerContext context) {
+        try {
+            Method method = context.getClass().getMethod("addPropertyChangeListener", PropertyChangeListener.class);
+            method.invoke(context, (PropertyChangeListener) event -> {
+                if (event.getNewValue() instanceof Configuration) {
+                    install(filter, (Configuration) event.getNewValue());
+                }
+            });
+        } catch (ReflectiveOperationException e) {
+            // pass
+        }
+    }
+
+    public static long getTotalSuppressed() {
+        LogDedupeFilter filter = instance;
+        return filter != null ? filter.totalSuppressed : 0;
+    }
+
+    private Result filter(Logger logger, Level level, String format, Throwable t) {
+        if (logger == null || reporting.get() != null || !loggers.contains(logger.getName())) {
+            return Result.NEUTRAL;
+        }
+
+        long now = System.nanoTime();
+        if (now - lastSweep >= windowNanos) {
+            lastSweep = now;
+            sweep(now);
+        }
+
+        Key key = new Key(logger.getName(), level, format, t);
+        Window window = windows.get(key);
+        if (window == null) {
+            if (windows.size() >= MAX_KEYS) {
+                return Result.NEUTRAL;
+            }
+            window = windows.computeIfAbsent(key, k -> new Window(logger, now));
+        }
+
+        synchronized (window) {
+            if (now - window.start >= windowNanos) {
+                report(key, window);
+                window.start = now;
+                window.count = 0;
+            }
+            if (++window.count > burstSize) {
+                window.suppressed++;
+                return Result.DENY;
+            }
+        }
+        return Result.NEUTRAL;
+    }
+
+    /**
+     * Reports and forgets windows which have ended.
+     */
+    private void sweep(long now) {
+        Iterator<Map.Entry<Key, Window>> iterator = windows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Window> entry = iterator.next();
+            Window window = entry.getValue();
+            synchronized (window) {
+                if (now - window.start >= windowNanos) {
+                    report(entry.getKey(), window);
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void report(Key key, Window window) {
+        if (window.suppressed > 0) {
+            synchronized (this) {
+                totalSuppressed += window.suppressed;
+            }
+            reporting.set(Boolean.TRUE);
+            try {
+                window.logger.log(key.level, window.suppressed + " similar messages suppressed: " + key);
+            } finally {
+                reporting.remove();
+            }
+            window.suppressed = 0;
+        }
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, String msg, Object... params) {
+        return filter(logger, level, msg, params != null && params.length > 0 && params[params.length - 1] instanceof Throwable
+                ? (Throwable) params[params.length - 1] : null);
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Object msg, Throwable t) {
+        // Arbitrary objects have no format to group them by.
+        return msg instanceof String ? filter(logger, level, (String) msg, t) : Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(Logger logger, Level level, Marker marker, Message msg, Throwable t) {
+        return msg != null && msg.getFormat() != null ? filter(logger, level, msg.getFormat(), t) : Result.NEUTRAL;
+    }
+
+    @Override
+    public Result filter(LogEvent event) {
+        // Already decided before the event was created.
+        return Result.NEUTRAL;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import net.minecraft.launchwrapper.IClassNameTransformer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of LaunchClassLoader's class name transformer (FML's
+ * DeobfuscationTransformer in an obfuscated environment), which is asked to
+ * unmap and remap the name of every class that is loaded, often repeatedly.
+ *
+ * FML's class name mappings do not change after setup, so the results can be
+ * kept for the lifetime of the game.
+ */
+public final class MemoizingClassNameTransformer implements IClassNameTransformer {
+    private final IClassNameTransformer parent;
+    private final Map<String, String> remapped = new ConcurrentHashMap<>();
+    private final Map<String, String> unmapped = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), parentNanos = new AtomicLong();
+
+    public MemoizingClassNameTransformer(IClassNameTransformer parent) {
+        this.parent = parent;
+    }
+
+    public IClassNameTransformer getParent() {
+        return parent;
+    }
+
+    @Override
+    public String remapClassName(String name) {
+        String result = remapped.get(name);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+
+        long time = System.nanoTime();
+        result = parent.remapClassName(name);
+        parentNanos.addAndGet(System.nanoTime() - time);
+        misses.incrementAndGet();
+        if (result != null) {
+            remapped.put(name, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String unmapClassName(String name) {
+        String result = unmapped.get(name);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+
+        long time = System.nanoTime();
+        result = parent.unmapClassName(name);
+        parentNanos.addAndGet(System.nanoTime() - time);
+        misses.incrementAndGet();
+        if (result != null) {
+            unmapped.put(name, result);
+        }
+        return result;
+    }
+
+    public String getStatistics() {
+        long h = hits.get(), m = misses.get();
+        return (remapped.size() + unmapped.size()) + " entries, " + h + " hits, " + m + " misses ("
+                + (h + m > 0 ? (h * 100 / (h + m)) : 0) + "% hit rate), "
+                + (parentNanos.get() / 1000000) + " ms spent in " + parent.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix;
+
+import cpw.mods.fml.common.discovery.ITypeDiscoverer;
+import cpw.mods.fml.common.discovery.asm.ASMModParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Called by JarDiscoverer.discover in place of "new ASMModParser(jar.getInputStream(entry))".
+ *
+ * The first request for a class in a jar parses that class and the ones following
+ * it, in batches, on the fork-join pool. JarDiscoverer still walks the entries in
+ * its own order and does everything else (class entries, ASMDataTable, mod
+ * containers) itself, so discovery produces the same result as a sequential scan;
+ * a class which failed to parse throws the same exception when it is reached.
+ */
+public final class ParallelModParser {
+    private static final int BATCH_SIZE = 512;
+
+    private static ZipFile currentJar;
+    private static List<ZipEntry> entries;
+    private static Map<String, Integer> entryPositions;
+    private static final Map<String, Object> results = new ConcurrentHashMap<>();
+
+    private ParallelModParser() {
+
+    }
+
+    /**
+     * Drops the state kept for the jar being scanned. Called when
+     * JarDiscoverer.discover returns, and once more when loading completes.
+     */
+    public static synchronized void release() {
+        currentJar = null;
+        entries = null;
+        entryPositions = null;
+        results.clear();
+    }
+
+    public static synchronized ASMModParser getParser(ZipFile jar, ZipEntry entry) throws IOException {
+        if (jar != currentJar) {
+            open(jar);
+        }
+
+        Object result = results.remove(entry.getName());
+        if (result == null) {
+            Integer position = entryPositions.get(entry.getName());
+            if (position == null) {
+                return parse(jar, entry);
+            }
+            parseBatch(jar, position);
+            result = results.remove(entry.getName());
+        }
+
+        if (result instanceof ASMModParser) {
+            return (ASMModParser) result;
+        } else if (result instanceof IOException) {
+            throw (IOException) result;
+        } else if (result instanceof RuntimeException) {
+            throw (RuntimeException) result;
+        } else {
+            throw (Error) result;
+        }
+    }
+
+    private static void open(ZipFile jar) {
+        release();
+        currentJar = jar;
+        entries = new ArrayList<>();
+        entryPositions = new HashMap<>();
+        for (ZipEntry entry : Collections.list(jar.entries())) {
+            // The same filter JarDiscoverer applies before parsing an entry.
+            if (entry.getName() != null && !entry.getName().startsWith("__MACOSX") && ITypeDiscoverer.classFile.matcher(entry.getName()).matches()) {
+                entryPositions.put(entry.getName(), entries.size());
+                entries.add(entry);
+            }
+        }
+    }
+
+    private static void parseBatch(ZipFile jar, int start) {
+        int end = Math.min(start + BATCH_SIZE, entries.size());
+        IntStream.range(start, end).parallel().forEach(i -> {
+            ZipEntry entry = entries.get(i);
+            Object result;
+            try {
+                result = parse(jar, entry);
+            } catch (IOException | RuntimeException | Error e) {
+                result = e;
+            }
+            results.put(entry.getName(), result);
+        });
+        // Never batch these again; one JarDiscoverer asks for twice is parsed on its own.
+        for (int i = start; i < end; i++) {
+            entryPositions.remove(entries.get(i).getName());
+        }
+    }
+
+    private static ASMModParser parse(ZipFile jar, ZipEntry entry) throws IOException {
+        try (InputStream stream = jar.getInputStream(entry)) {
+            return new ASMModParser(stream);
+        }
+    }
+}
@@ -24,6 +24,7 @@
 package pl.asie.foamfix.bugfixmod;
 
 import java.io.File;
+import java.util.List;
 
 public class BugfixModSettings {
     // Coremod
@@ -45,9 +46,26 @@ public class BugfixModSettings {
 
     public boolean clOpenUrlLinux;
 
+    public boolean lgDedupe;
+    public int lgDedupeBurstSize;
+    public int lgDedupeWindowSeconds;
+
     public boolean mc18SkinSupport;
 
+    public boolean cmTransformCache;
+    public boolean cmProfileTransformer;
+    public boolean cmProfileTransformerChain;
+    public boolean cmBackgroundTransform;
+    public boolean cmCopyUntouchedMethods;
+    public boolean cmParallelModDiscovery;
+    public boolean cmCompactASMDataTable;
+    public boolean cmReleaseASMDataTable;
+
     public boolean lwWeakenResourceCache;
+    public int lwResourceCacheSize;
+    public int lwNegativeCacheSize;
+    public boolean lwJarIndex;
+    public boolean lwMemoizeClassNames;
     public boolean lwRemovePackageManifestMap;
 
     // Mod
@@ -57,11 +75,20 @@ public class BugfixModSettings {
     // Ghostbuster
     public String gbDebuggerLogFilePath;
     public File gbDebuggerLogFile;
+    public int gbDebuggerLogBufferSize;
     public boolean gbEnableDebugger;
+    public boolean gbDebuggerLogEvents;
+    public int gbDebuggerSampleRate;
+    public int gbDebuggerStackDepth;
     public boolean gbEnableFixes;
     public boolean gbFixGrassVanilla;
     public boolean gbFixGrassBOP;
     public boolean gbFixFluidsVanilla;
     public boolean gbFixFluidsModded;
     public boolean gbFixVinesVanilla;
+    public List<String> gbRules;
+    public String gbRulesFilePath;
+    public File gbRulesFile;
+    public int gbLearnMinutes;
+    public int gbLearnRadius;
 }
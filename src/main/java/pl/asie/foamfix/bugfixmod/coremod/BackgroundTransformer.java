@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.bugfixmod.coremod;
+
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.apache.logging.log4j.Logger;
+import pl.asie.foamfix.coremod.ClassTransformerProfiler;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transforms FoamFix's known target classes on a worker thread ahead of time, so that
+ * the ASM work is already done by the time FML's loading thread asks for them.
+ *
+ * To produce the same input bytes as the real class load, the transformers registered
+ * before FoamFix's have to be run as well; this is only done if all of them are FML or
+ * Forge ones, and always while holding the class loader's lock, just like a class load.
+ * Classes which any global patcher or the Ears patch could apply to are left alone,
+ * as those patchers are shared with every other class being loaded.
+ */
+final class BackgroundTransformer implements Runnable {
+    private static final String[] SAFE_TRANSFORMER_PREFIXES = {
+            "cpw.mods.fml.", "net.minecraftforge."
+    };
+    private static final Object TAKEN = new Object();
+
+    private final BugfixModClassTransformer transformer;
+    private final LaunchClassLoader loader;
+    private final Logger logger;
+    private final List<String> targets;
+    private final ConcurrentMap<String, Object> results = new ConcurrentHashMap<>();
+    private volatile boolean started;
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger(), precomputed = new AtomicInteger();
+
+    BackgroundTransformer(BugfixModClassTransformer transformer, LaunchClassLoader loader, Logger logger, Collection<String> targets) {
+        this.transformer = transformer;
+        this.loader = loader;
+        this.logger = logger;
+        this.targets = new ArrayList<>(targets);
+    }
+
+    /**
+     * Starts the worker once the first Minecraft class is loaded; by then, every
+     * tweaker has registered its transformers.
+     */
+    void startIfReady(String transformedName) {
+        if (!started && transformedName.startsWith("net.minecraft.")) {
+            started = true;
+            Thread thread = new Thread(this, "FoamFix background transformer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return The precomputed output for this class if it was transformed from
+     * the same input bytes, null otherwise. Each class is only ever looked up once.
+     */
+    byte[] get(String transformedName, byte[] bytes) {
+        Object o = results.putIfAbsent(transformedName, TAKEN);
+        if (o == null || o == TAKEN) {
+            return null;
+        }
+        results.put(transformedName, TAKEN);
+
+        @SuppressWarnings("unchecked")
+        FutureTask<byte[][]> task = (FutureTask<byte[][]>) o;
+        byte[][] result;
+        try {
+            if (!task.isDone() && Thread.holdsLock(loader)) {
+                // Release the class loader's lock while waiting, in case the worker
+                // needs to load a class to finish its job.
+                synchronized (loader) {
+                    while (!task.isDone()) {
+                        loader.wait();
+                    }
+                }
+            }
+            result = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.warn("Could not transform " + transformedName + " in the background!", e.getCause());
+            return null;
+        }
+
+        if (!Arrays.equals(result[0], bytes)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result[1] == result[0] ? bytes : result[1];
+    }
+
+    @Override
+    public void run() {
+        List<IClassTransformer> prefix = getPrefixTransformers();
+        if (prefix == null) {
+            return;
+        }
+
+        Method untransformName;
+        try {
+            untransformName = LaunchClassLoader.class.getDeclaredMethod("untransformName", String.class);
+            untransformName.setAccessible(true);
+        } catch (Exception e) {
+            logger.warn("Could not access LaunchClassLoader.untransformName, disabling background transformer", e);
+            return;
+        }
+
+        for (String transformedName : targets) {
+            FutureTask<byte[][]> task;
+            synchronized (loader) {
+                if (results.containsKey(transformedName)) {
+                    continue;
+                }
+
+                byte[] input;
+                try {
+                    String name = (String) untransformName.invoke(loader, transformedName);
+                    input = loader.getClassBytes(name);
+                    for (IClassTransformer t : prefix) {
+                        if (input == null) {
+                            break;
+                        }
+                        input = t.transform(name, transformedName, input);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Could not prepare " + transformedName + " for background transformation!", e);
+                    continue;
+                }
+
+                if (input == null || !transformer.canTransformInBackground(transformedName, input)) {
+                    continue;
+                }
+
+                final byte[] taskInput = input;
+                task = new FutureTask<>(() -> new byte[][] { taskInput, transformer.transformInBackground(transformedName, taskInput) });
+                results.put(transformedName, task);
+            }
+
+            task.run();
+            precomputed.incrementAndGet();
+            synchronized (loader) {
+                loader.notifyAll();
+            }
+        }
+    }
+
+    private List<IClassTransformer> getPrefixTransformers() {
+        List<IClassTransformer> prefix = new ArrayList<>();
+        synchronized (loader) {
+            for (IClassTransformer t : loader.getTransformers()) {
+                IClassTransformer unwrapped = t instanceof ClassTransformerProfiler.Wrapper ? ((ClassTransformerProfiler.Wrapper) t).getParent() : t;
+                if (unwrapped == transformer) {
+                    return prefix;
+                }
+
+                String className = unwrapped.getClass().getName();
+                boolean safe = false;
+                for (String s : SAFE_TRANSFORMER_PREFIXES) {
+                    if (className.startsWith(s)) {
+                        safe = true;
+                        break;
+                    }
+                }
+                if (!safe) {
+                    logger.info("Class transformer " + className + " runs before FoamFix, disabling background transformer");
+                    return null;
+                }
+                prefix.add(t);
+            }
+        }
+        logger.warn("Could not find FoamFix in the class transformer list, disabling background transformer");
+        return null;
+    }
+
+    String getStatistics() {
+        return precomputed.get() + " classes transformed in the background, " + hits.get() + " used, " + misses.get() + " discarded due to differing input";
+    }
+}
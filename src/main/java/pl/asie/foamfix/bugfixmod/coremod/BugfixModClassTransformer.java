@@ -24,21 +24,41 @@
 package pl.asie.foamfix.bugfixmod.coremod;
 
 import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LaunchClassLoader;
 import net.minecraftforge.common.config.Configuration;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import pl.asie.foamfix.CompactASMDataTable;
+import pl.asie.foamfix.HackyMessageFactoryWrapper;
+import pl.asie.foamfix.LaunchWrapperRuntimeFix;
+import pl.asie.foamfix.LogDedupeFilter;
+import pl.asie.foamfix.ParallelModParser;
 import pl.asie.foamfix.bugfixmod.BugfixModSettings;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.BoatDesyncFixPatcher_Extra;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.ChickenLureTweakPatcher;
 import pl.asie.foamfix.coremod.patchers.*;
+import pl.asie.foamfix.coremod.util.ClassSplicingUtil;
+import pl.asie.foamfix.coremod.util.ConstantPoolScanner;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.HeartBlinkFixPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.SnowballFixPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.BoatDesyncFixPatcher_Main;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.HeartFlashFixPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.ItemHopperBounceFixPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.ItemStairBounceFixPatcher;
 import pl.asie.foamfix.bugfixmod.coremod.patchers.VillageAnvilTweakPatcher;
+import pl.asie.foamfix.coremod.ClassTransformerProfiler;
+import pl.asie.foamfix.coremod.FoamFixCoreContainer;
+import pl.asie.foamfix.coremod.TransformedClassCache;
+import pl.asie.foamfix.coremod.TransformerProfiler;
 import pl.asie.foamfix.forkage.coremod.patchers.*;
 import pl.asie.foamfix.repack.com.unascribed.ears.common.agent.EarsAgent;
 
@@ -46,12 +66,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 
 /**
@@ -64,9 +90,16 @@ public class BugfixModClassTransformer implements IClassTransformer {
     private boolean hasInit = false;
     public BugfixModSettings settings;
     private ArrayList<AbstractPatcher> globalPatchers = new ArrayList<>();
+    private ArrayList<byte[][]> globalPatcherConstants = new ArrayList<>();
     private Map<String, ArrayList<AbstractPatcher>> patchers;
     public Logger logger = LogManager.getLogger("foamfix");
 
+    private TransformedClassCache cache;
+    public TransformerProfiler profiler;
+    private ClassTransformerProfiler chainProfiler;
+    private BackgroundTransformer backgroundTransformer;
+    private long classesSkipped, classesParsed;
+
     private static final int JNDILOOKUP_MOJANG_SIZE = 738;
     private static final byte[] JNDILOOKUP_MOJANG_SHA256 = new byte[] {-56, -115, 104, -45, -32, -128, 26, -73, -90, -95, 22, -31, -108, -95, 110, 43, 88, -91, -16, 99, -36, 29, 79, -76, -21, -37, -43, 26, 5, -84, 78, -40};
 
@@ -96,6 +129,14 @@ public class BugfixModClassTransformer implements IClassTransformer {
             settings.gbDebuggerLogFilePath = config.get("ghostbuster", "debuggerLogFile", "",
                     "Path of the log file for /ghostbuster logging; if empty, outputs to Minecraft log file.").getString().trim();
             settings.gbDebuggerLogFile = settings.gbDebuggerLogFilePath.isEmpty() ? null : new File(settings.gbDebuggerLogFilePath);
+            settings.gbDebuggerLogBufferSize = config.get("ghostbuster", "debuggerLogBufferSize", 8192,
+                    "How many events may wait to be written to the /ghostbuster log file. Further events are dropped and counted instead of stalling the server.", 64, 1048576).getInt(8192);
+            settings.gbDebuggerLogEvents = config.get("ghostbuster", "debuggerLogEvents", true,
+                    "Log every sampled ghost chunkloading event with its stack trace. If disabled, events are only collected for /ghostbuster top and /ghostbuster dump.").getBoolean(true);
+            settings.gbDebuggerSampleRate = config.get("ghostbuster", "debuggerSampleRate", 1,
+                    "Only inspect one in every N ghost chunkloading events while /ghostbuster logging is on. 1 inspects every event.", 1, 65536).getInt(1);
+            settings.gbDebuggerStackDepth = config.get("ghostbuster", "debuggerStackDepth", 0,
+                    "The maximum number of stack frames kept for each ghost chunkloading event. 0 keeps the whole stack.", 0, 1024).getInt(0);
             settings.gbEnableFixes = config.get("ghostbuster", "enableFixes", true,
                     "Main toggle. If disabled, none of the ghost chunkloading fixes are applied.").getBoolean(true);
             settings.gbFixGrassVanilla = config.get("ghostbuster", "fixGrassVanilla", true,
@@ -108,6 +149,32 @@ public class BugfixModClassTransformer implements IClassTransformer {
                     "Fix ghost chunkloading caused by modded fluid blocks.").getBoolean(true);
             settings.gbFixVinesVanilla = config.get("ghostbuster", "fixVinesVanilla", true,
                     "Fix ghost chunkloading caused by vanilla vine blocks.").getBoolean(true);
+            settings.gbRules = Arrays.asList(config.get("ghostbuster", "rules", new String[0],
+                    "Additional ghost chunkloading fixes, one per line, applied if enableFixes is on:\n"
+                    + "  earlyReturn <class> <method> [access=<slot>] [pos=<slot>] [radius=<n>] [return=<value>]\n"
+                    + "    Return from the method unless the blocks within radius of the x, y, z arguments starting at local slot pos\n"
+                    + "    (default 2) are loaded in the IBlockAccess at slot access (default 1). The radius defaults to 0, at most 64.\n"
+                    + "    The return value defaults to false, 0 or null for non-void methods.\n"
+                    + "  wrap <class> <method>\n"
+                    + "    Make getBlock and isAirBlock calls in the method treat unloaded blocks as air.\n"
+                    + "Use an MCP name qualified with its vanilla class (e.g. Block.updateTick) for overridden vanilla methods,\n"
+                    + "optionally followed by a descriptor. Example: earlyReturn gregtech.common.blocks.GT_Block_Ores Block.updateTick radius=1").getStringList());
+            settings.gbRulesFilePath = config.get("ghostbuster", "rulesFile", "foamfix-ghostbuster.rules",
+                    "File with further rules in the same format, one per line, relative to the config directory. Written by /ghostbuster learn.").getString().trim();
+            settings.gbRulesFile = new File(settings.gbRulesFilePath).isAbsolute() ? new File(settings.gbRulesFilePath) : new File(settingsFile.getParentFile(), settings.gbRulesFilePath);
+            if (settings.gbRulesFile.isFile()) {
+                try {
+                    List<String> rules = new ArrayList<>(settings.gbRules);
+                    rules.addAll(Files.readAllLines(settings.gbRulesFile.toPath(), StandardCharsets.UTF_8));
+                    settings.gbRules = rules;
+                } catch (IOException e) {
+                    logger.warn("Could not read ghostbuster rules file " + settings.gbRulesFile, e);
+                }
+            }
+            settings.gbLearnMinutes = config.get("ghostbuster", "learnMinutes", 0,
+                    "If non-zero and enableDebugger is on, learn from ghost chunkloads for this many minutes after the server starts, as /ghostbuster learn does.", 0, 10080).getInt(0);
+            settings.gbLearnRadius = config.get("ghostbuster", "learnRadius", 2,
+                    "The radius used by earlyReturn rules written by /ghostbuster learn.", 0, 64).getInt(2);
 
             settings.bfJarDiscovererMemoryLeakFixEnabled = config.get("bugfixes", "jarDiscovererMemoryLeakFix", true,
                     "Fix native memory leak in JarDiscoverer (from Forkage by immibis)").getBoolean(true);
@@ -118,8 +185,35 @@ public class BugfixModClassTransformer implements IClassTransformer {
             settings.bfAlphaPassTessellatorCrashFixEnabled = config.get("bugfixes", "tessellatorAlphaPassCrashFix", true,
                     "Fix PriorityQueue tessellator crash on empty alpha pass.").getBoolean(true);
 
+            settings.cmTransformCache = config.get("coremod", "cacheTransformedClasses", false,
+                    "Cache classes transformed by FoamFix in .foamfix-cache, skipping the same ASM work on subsequent launches. Experimental.").getBoolean(false);
+            settings.cmProfileTransformer = config.get("coremod", "profileTransformer", false,
+                    "Collect timing statistics for FoamFix's class transformer, written to the log and logs/foamfix-transformer.json once loading completes.").getBoolean(false);
+            settings.cmProfileTransformerChain = config.get("coremod", "profileTransformerChain", false,
+                    "Measure every class transformer registered with LaunchWrapper, including those of other coremods, until loading completes. Written to the log and logs/foamfix-transformers.json.").getBoolean(false);
+            settings.cmCopyUntouchedMethods = config.get("coremod", "copyUntouchedMethods", true,
+                    "When FoamFix only patches some methods of a class, copy the bytecode of the other methods as-is instead of re-encoding the whole class.").getBoolean(true);
+            settings.cmParallelModDiscovery = config.get("coremod", "parallelModDiscovery", true,
+                    "Parse the classes of mod jars on all CPU cores during mod discovery. The results are used in the same order as before.").getBoolean(true);
+            settings.cmCompactASMDataTable = config.get("coremod", "compactASMDataTable", false,
+                    "Deduplicate the strings in FML's table of annotations found during mod discovery and store it more compactly. "
+                            + "Changes the type of the sets returned by ASMDataTable.getAll(), whose contains() becomes a linear scan. "
+                            + "Logs the heap it saves once loading is complete, measured across a few full garbage collections. Experimental.").getBoolean(false);
+            settings.cmReleaseASMDataTable = config.get("coremod", "releaseASMDataTable", false,
+                    "Empty FML's table of annotations found during mod discovery once loading is complete. Mods which look at it later will find nothing.").getBoolean(false);
+            settings.cmBackgroundTransform = config.get("coremod", "backgroundTransform", false,
+                    "Patch FoamFix's target classes on a background thread before they are loaded. Only active if no other coremod's transformer runs before FoamFix's. Experimental.").getBoolean(false);
+
             settings.lwWeakenResourceCache = config.get("launchwrapper", "weakenResourceCache", true,
-                    "Weaken LaunchWrapper's byte[] resource cache to make it cleanuppable by the GC. Safe.").getBoolean(true);
+                    "Limit LaunchWrapper's byte[] resource cache to resourceCacheSize, or make it cleanuppable by the GC if that is 0. Safe.").getBoolean(true);
+            settings.lwResourceCacheSize = config.get("launchwrapper", "resourceCacheSize", 32,
+                    "The size of LaunchWrapper's byte[] resource cache, in megabytes. Least recently used classes are evicted first.", 0, 1024).getInt(32);
+            settings.lwNegativeCacheSize = config.get("launchwrapper", "negativeCacheSize", 16384,
+                    "How many missing class and resource names LaunchWrapper remembers, each, to avoid scanning every jar for them again. 0 leaves LaunchWrapper's unbounded sets in place.", 0, 1048576).getInt(16384);
+            settings.lwJarIndex = config.get("launchwrapper", "jarIndex", false,
+                    "Keep a memory-mapped index of which jar contains which class, so that LaunchWrapper reads class bytes from the right jar instead of probing every jar in turn. Rebuilt whenever a jar changes.").getBoolean(false);
+            settings.lwMemoizeClassNames = config.get("launchwrapper", "memoizeClassNames", true,
+                    "Remember the results of FML's class name deobfuscation, which LaunchWrapper repeats for every class it loads.").getBoolean(true);
             settings.lwRemovePackageManifestMap = config.get("launchwrapper", "removePackageManifestMap", true,
                     "Remove LaunchWrapper package manifest map (which is not used anyway).").getBoolean(true);
 
@@ -163,6 +257,14 @@ public class BugfixModClassTransformer implements IClassTransformer {
                     "Fix BiblioRCE exploit."
             ).getBoolean(true);
 
+            settings.lgDedupe = config.get("logging", "dedupe", false,
+                    "Collapse repeated similar log messages (same logger, level, format string and exception site) into periodic \"N similar messages suppressed\" lines. "
+                    + "Only messages with a format string are grouped. If Log4J is reconfigured and does not announce it, deduplication resumes once FoamFix patches another logger.").getBoolean(false);
+            settings.lgDedupeBurstSize = config.get("logging", "dedupeBurstSize", 5,
+                    "How many similar messages are logged per window before the rest are suppressed.", 1, 1000).getInt(5);
+            settings.lgDedupeWindowSeconds = config.get("logging", "dedupeWindowSeconds", 60,
+                    "The length of a deduplication window, in seconds.", 1, 3600).getInt(60);
+
             settings.mc18SkinSupport = config.get("tweaks", "mc18SkinSupport", true,
                     "Add support for Minecraft 1.8+ skins."
                     ).getBoolean(true);
@@ -178,7 +280,32 @@ public class BugfixModClassTransformer implements IClassTransformer {
 
             config.save();
             MappingRegistry.init(isObf);
+            if (settings.cmProfileTransformer) {
+                profiler = new TransformerProfiler();
+            }
             setupPatchers();
+            if (settings.cmTransformCache) {
+                setupCache(isObf);
+            }
+            if (settings.lwWeakenResourceCache && settings.lwResourceCacheSize > 0) {
+                logger.info("Limiting LaunchWrapper resource cache to " + settings.lwResourceCacheSize + " MB...");
+                LaunchWrapperRuntimeFix.limitResourceCache((long) settings.lwResourceCacheSize << 20);
+            }
+            if (settings.lwNegativeCacheSize > 0) {
+                LaunchWrapperRuntimeFix.limitNegativeCaches(settings.lwNegativeCacheSize);
+            }
+            if (settings.lwMemoizeClassNames && LaunchWrapperRuntimeFix.memoizeClassNameTransformer()) {
+                logger.info("Memoizing LaunchWrapper class name transformer...");
+            }
+            if (settings.lwJarIndex) {
+                LaunchWrapperRuntimeFix.installJarIndex(new File(new File(settingsFile.getParent()).getParent(), ".foamfix-cache"), logger);
+            }
+            if (settings.cmProfileTransformerChain) {
+                chainProfiler = ClassTransformerProfiler.install(logger);
+            }
+            if (settings.cmBackgroundTransform && getClass().getClassLoader() instanceof LaunchClassLoader) {
+                backgroundTransformer = new BackgroundTransformer(this, (LaunchClassLoader) getClass().getClassLoader(), logger, patchers.keySet());
+            }
             hasInit = true;
         }
     }
@@ -211,32 +338,351 @@ public class BugfixModClassTransformer implements IClassTransformer {
     }
 
     public byte[] transform(String name, String transformedName, byte[] bytes) {
-        if (hasInit) {
-            List<AbstractPatcher> gpl = globalPatchers;
-            for (AbstractPatcher p : gpl) {
-                bytes = p.patch(transformedName, bytes);
-            }
-            List<AbstractPatcher> pl = patchers.get(transformedName);
-            if (pl != null) {
-                for (AbstractPatcher p : pl) {
-                    bytes = p.patch(transformedName, bytes);
+        if (hasInit && bytes != null) {
+            if (backgroundTransformer != null) {
+                backgroundTransformer.startIfReady(transformedName);
+            }
+            if (profiler != null) {
+                long allocated = profiler.getAllocatedBytes();
+                long start = System.nanoTime();
+                byte[] result = transformClass(transformedName, bytes);
+                long time = System.nanoTime() - start;
+                profiler.total.record(time, bytes.length, result.length, result != bytes);
+                if (allocated >= 0) {
+                    profiler.total.addAllocated(profiler.getAllocatedBytes() - allocated);
+                }
+                profiler.recordClass(transformedName, time);
+                return result;
+            } else {
+                return transformClass(transformedName, bytes);
+            }
+        }
+        return bytes;
+    }
+
+    private byte[] transformClass(String transformedName, byte[] bytes) {
+        List<AbstractPatcher> gpl = getCandidateGlobalPatchers(bytes);
+        List<AbstractPatcher> pl = patchers.get(transformedName);
+        boolean ears = !Boolean.FALSE.equals(applyEarsPatch) && EarsAgent.isTarget(transformedName) && applyEarsPatch();
+
+        if (pl != null && backgroundTransformer != null) {
+            byte[] result = backgroundTransformer.get(transformedName, bytes);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        if (pl != null || ears || !gpl.isEmpty()) {
+            // Ears patches are not cached, as whether they apply depends on other installed mods.
+            if (cache != null && !ears && isCacheable(gpl) && (pl == null || isCacheable(pl))) {
+                long start = profiler != null ? System.nanoTime() : 0;
+                byte[] key = cache.getKey(transformedName, bytes);
+                byte[] cachedBytes = cache.get(key, bytes);
+                if (profiler != null) {
+                    profiler.cache.record(System.nanoTime() - start, bytes.length, cachedBytes != null ? cachedBytes.length : 0, cachedBytes != null);
+                }
+
+                if (cachedBytes == null) {
+                    classesParsed++;
+                    cachedBytes = transformClassNode(transformedName, bytes, gpl, pl, false);
+                    cache.put(key, bytes, cachedBytes);
+                }
+                return cachedBytes;
+            } else {
+                classesParsed++;
+                return transformClassNode(transformedName, bytes, gpl, pl, ears);
+            }
+        } else {
+            // Only count classes which some global patcher would have parsed without the scan.
+            if (gpl != globalPatchers) {
+                classesSkipped++;
+            }
+            return bytes;
+        }
+    }
+
+    private static boolean isCacheable(List<AbstractPatcher> patchers) {
+        for (int i = 0; i < patchers.size(); i++) {
+            if (!patchers.get(i).isCacheable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<AbstractPatcher> getCandidateGlobalPatchers(byte[] bytes) {
+        List<AbstractPatcher> result = null;
+        for (int i = 0; i < globalPatchers.size(); i++) {
+            byte[][] constants = globalPatcherConstants.get(i);
+            if (constants != null && !ConstantPoolScanner.containsAll(bytes, constants)) {
+                if (result == null) {
+                    result = new ArrayList<>(globalPatchers.subList(0, i));
+                }
+            } else if (result != null) {
+                result.add(globalPatchers.get(i));
+            }
+        }
+        return result != null ? result : globalPatchers;
+    }
+
+    public void onLoadComplete() {
+        ClassSplicingUtil.releaseCache();
+        if (settings.cmParallelModDiscovery) {
+            ParallelModParser.release();
+        }
+        if (LaunchWrapperRuntimeFix.getResourceCacheStatistics() != null) {
+            logger.info("LaunchWrapper resource cache: " + LaunchWrapperRuntimeFix.getResourceCacheStatistics());
+        }
+        if (settings.cmCompactASMDataTable) {
+            CompactASMDataTable.report(logger);
+            if (settings.cmReleaseASMDataTable) {
+                CompactASMDataTable.release(logger);
+            }
+        }
+        if (LaunchWrapperRuntimeFix.getClassNameTransformerStatistics() != null) {
+            logger.info("LaunchWrapper class name transformer: " + LaunchWrapperRuntimeFix.getClassNameTransformerStatistics());
+        }
+        if (LaunchWrapperRuntimeFix.getJarIndexStatistics() != null) {
+            logger.info("LaunchWrapper jar index: " + LaunchWrapperRuntimeFix.getJarIndexStatistics());
+            LaunchWrapperRuntimeFix.updateJarIndex();
+        }
+        for (String s : LaunchWrapperRuntimeFix.getNegativeCacheStatistics()) {
+            logger.info("LaunchWrapper negative cache " + s);
+        }
+        logger.info("Class transformer: parsed " + classesParsed + " classes, skipped " + classesSkipped + " classes by constant pool pre-filter");
+        if (cache != null) {
+            logger.info("Transformed class cache: " + cache.getStatistics());
+            cache.flush();
+        }
+        if (backgroundTransformer != null) {
+            logger.info("Background transformer: " + backgroundTransformer.getStatistics());
+        }
+        if (profiler != null) {
+            profiler.report(logger, new File(new File(settingsFile.getParent()).getParent(), "logs/foamfix-transformer.json"));
+        }
+        if (chainProfiler != null) {
+            chainProfiler.report(logger, new File(new File(settingsFile.getParent()).getParent(), "logs/foamfix-transformers.json"));
+            chainProfiler.uninstall(logger);
+            chainProfiler = null;
+        }
+    }
+
+    private void setupCache(boolean isObf) {
+        if (FoamFixCoreContainer.VERSION.startsWith("@")) {
+            logger.info("Development environment detected, not using transformed class cache");
+            return;
+        }
+
+        byte[] environmentKey;
+        try {
+            StringBuilder environment = new StringBuilder();
+            environment.append(FoamFixCoreContainer.VERSION).append('\n');
+            environment.append(isObf).append('\n');
+
+            Field[] fields = BugfixModSettings.class.getFields();
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+            for (Field f : fields) {
+                environment.append(f.getName()).append('=').append(f.get(settings)).append('\n');
+            }
+
+            for (AbstractPatcher p : globalPatchers) {
+                environment.append(p.getClass().getName()).append('/').append(p.getPatcherName()).append('\n');
+            }
+            for (String className : new TreeSet<>(patchers.keySet())) {
+                for (AbstractPatcher p : patchers.get(className)) {
+                    environment.append(className).append(':').append(p.getClass().getName()).append('/').append(p.getPatcherName()).append('\n');
+                }
+            }
+
+            environmentKey = MessageDigest.getInstance("SHA-256").digest(environment.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            logger.warn("Could not compute transformed class cache key!", e);
+            return;
+        }
+
+        cache = TransformedClassCache.open(new File(new File(settingsFile.getParent()).getParent(), ".foamfix-cache"), environmentKey, logger);
+        if (cache != null) {
+            final TransformedClassCache shutdownCache = cache;
+            Runtime.getRuntime().addShutdownHook(new Thread(shutdownCache::flush, "FoamFix class cache flush"));
+        }
+    }
+
+    boolean canTransformInBackground(String transformedName, byte[] bytes) {
+        return getCandidateGlobalPatchers(bytes).isEmpty() && !EarsAgent.isTarget(transformedName);
+    }
+
+    byte[] transformInBackground(String transformedName, byte[] bytes) {
+        return transformClassNode(transformedName, bytes, Collections.emptyList(), patchers.get(transformedName), false);
+    }
+
+    /**
+     * Runs every applicable patcher on a single parsed ClassNode and writes the
+     * class out once, instead of parsing and writing it again for each patcher.
+     * If all of them are visitor patchers, no ClassNode is built at all.
+     */
+    private byte[] transformClassNode(String transformedName, byte[] bytes, List<AbstractPatcher> gpl, List<AbstractPatcher> pl, boolean ears) {
+        ClassReader classReader;
+        try {
+            classReader = new ClassReader(bytes);
+        } catch (NullPointerException e) { // Thrown when LiteLoader classes are read.
+            // Silently ignore.
+            return bytes;
+        }
+
+        List<AbstractPatcher> activePatchers = new ArrayList<>(gpl);
+        if (pl != null) {
+            activePatchers.addAll(pl);
+        }
+
+        while (true) {
+            boolean streaming = !ears;
+            boolean methodLocal = settings.cmCopyUntouchedMethods && !ears;
+            for (AbstractPatcher p : activePatchers) {
+                streaming &= p instanceof AbstractVisitorPatcher;
+                methodLocal &= p.isMethodLocal();
+            }
+
+            long time = profiler != null ? System.nanoTime() : 0;
+            ClassNode classNode = null;
+            ClassWriter streamWriter = null;
+            ClassVisitor visitor;
+            if (streaming) {
+                // Visitor patchers only: go straight from the reader to a writer,
+                // without building a tree at all.
+                streamWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_MAXS);
+                visitor = streamWriter;
+            } else {
+                classNode = methodLocal ? new TargetMethodClassNode(activePatchers) : new ClassNode();
+                visitor = classNode;
+            }
+            for (int i = activePatchers.size() - 1; i >= 0; i--) {
+                if (activePatchers.get(i) instanceof AbstractVisitorPatcher) {
+                    visitor = ((AbstractVisitorPatcher) activePatchers.get(i)).begin(transformedName, visitor);
+                }
+            }
+            classReader.accept(visitor, 0);
+            if (profiler != null) {
+                long now = System.nanoTime();
+                (streaming ? profiler.stream : profiler.parse).record(now - time, bytes.length, 0, true);
+                time = now;
+            }
+
+            boolean changed = false;
+            boolean[] applied = new boolean[activePatchers.size()];
+            List<AbstractPatcher> failedPatchers = null;
+            for (int i = 0; i < activePatchers.size(); i++) {
+                AbstractPatcher p = activePatchers.get(i);
+                applied[i] = p instanceof AbstractVisitorPatcher ? ((AbstractVisitorPatcher) p).end() : p.patch(transformedName, classNode);
+                if (profiler != null) {
+                    long now = System.nanoTime();
+                    profiler.getPatcher(p).record(now - time, bytes.length, 0, applied[i]);
+                    time = now;
+                }
+
+                if (applied[i]) {
+                    changed = true;
+                } else if (!p.getTargetClassName().isEmpty()) {
+                    if (failedPatchers == null) {
+                        failedPatchers = new ArrayList<>();
+                    }
+                    failedPatchers.add(p);
                 }
             }
 
-            if (applyEarsPatch == null) {
-                byte[] earsBytes = EarsAgent.transform(transformedName, bytes);
-                if (earsBytes != bytes) {
-                    if (applyEarsPatch()) {
-                        bytes = earsBytes;
+            if (failedPatchers != null) {
+                // A failed patcher may have left the shared ClassNode half-modified,
+                // so start over from the original bytes without it.
+                activePatchers.removeAll(failedPatchers);
+                continue;
+            }
+
+            int flags = ClassWriter.COMPUTE_MAXS;
+            if (ears) {
+                if (EarsAgent.transform(transformedName, classNode)) {
+                    flags |= ClassWriter.COMPUTE_FRAMES;
+                }
+                if (profiler != null) {
+                    long now = System.nanoTime();
+                    profiler.ears.record(now - time, bytes.length, 0, true);
+                    time = now;
+                }
+                changed = true;
+            }
+
+            if (!changed) {
+                return bytes;
+            }
+
+            ClassWriter writer;
+            if (streaming) {
+                writer = streamWriter;
+            } else if (methodLocal) {
+                // Linking the writer to the reader copies the constant pool, and lets
+                // ASM copy the bytecode of every method we do not hand it from the tree.
+                writer = new ClassWriter(classReader, flags);
+                classReader.accept(new TargetMethodReplacer(writer, classNode), 0);
+            } else {
+                writer = new ClassWriter(flags);
+                classNode.accept(writer);
+            }
+            byte[] result = writer.toByteArray();
+            if (profiler != null) {
+                profiler.write.record(System.nanoTime() - time, 0, result.length, true);
+                for (int i = 0; i < activePatchers.size(); i++) {
+                    if (applied[i]) {
+                        profiler.getPatcher(activePatchers.get(i)).addBytesOut(result.length);
                     }
                 }
-            } else if (applyEarsPatch) {
-                bytes = EarsAgent.transform(transformedName, bytes);;
             }
+            return result;
         }
-        return bytes;
     }
 
+    /**
+     * Only parses the methods which method-local patchers may modify.
+     */
+    private static final class TargetMethodClassNode extends ClassNode {
+        private final List<AbstractPatcher> patchers;
+
+        private TargetMethodClassNode(List<AbstractPatcher> patchers) {
+            super(Opcodes.ASM5);
+            this.patchers = patchers;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            for (AbstractPatcher p : patchers) {
+                if (p.isTargetMethod(name, desc)) {
+                    return super.visitMethod(access, name, desc, signature, exceptions);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the methods parsed by a {@link TargetMethodClassNode} in place of the
+     * originals; everything else passes straight from the reader to the writer.
+     */
+    private static final class TargetMethodReplacer extends ClassVisitor {
+        private final ClassNode classNode;
+
+        private TargetMethodReplacer(ClassWriter writer, ClassNode classNode) {
+            super(Opcodes.ASM5, writer);
+            this.classNode = classNode;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            for (MethodNode method : classNode.methods) {
+                if (method.name.equals(name) && method.desc.equals(desc)) {
+                    method.accept(cv);
+                    return null;
+                }
+            }
+            return super.visitMethod(access, name, desc, signature, exceptions);
+        }
+    }
 
     private void setupPatchers() {
         if (patchers != null) {
@@ -395,9 +841,34 @@ public class BugfixModClassTransformer implements IClassTransformer {
                             "net/minecraft/block/BlockVine", 4
                     ));
                 }
+
+                List<AbstractPatcher> rulePatchers = GhostBusterRules.parse(settings.gbRules, logger);
+                if (!rulePatchers.isEmpty()) {
+                    logger.info("Adding " + rulePatchers.size() + " ghostbuster rule(s) from the config");
+                    for (AbstractPatcher patcher : rulePatchers) {
+                        addPatcher(patcher);
+                    }
+                }
             }
 
-            if (settings.bfJarDiscovererMemoryLeakFixEnabled) {
+            if (settings.cmCompactASMDataTable) {
+                addPatcher(new ASMDataTableCompactPatcher(
+                        "ASMDataTableCompact",
+                        "cpw/mods/fml/common/discovery/ASMDataTable",
+                        "addASMData",
+                        "(Lcpw/mods/fml/common/discovery/ModCandidate;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/util/Map;)V"
+                ));
+            }
+
+            if (settings.cmParallelModDiscovery) {
+                // Also closes the streams, superseding JarDiscovererMemoryLeakFix.
+                addPatcher(new JarDiscovererParallelParserPatcher(
+                        "JarDiscovererParallelParser",
+                        "cpw/mods/fml/common/discovery/JarDiscoverer",
+                        "discover",
+                        "(Lcpw/mods/fml/common/discovery/ModCandidate;Lcpw/mods/fml/common/discovery/ASMDataTable;)Ljava/util/List;"
+                ));
+            } else if (settings.bfJarDiscovererMemoryLeakFixEnabled) {
                 addPatcher(new JarDiscovererMemoryLeakFixPatcher(
                         "JarDiscovererMemoryLeakFix",
                         "cpw/mods/fml/common/discovery/JarDiscoverer",
@@ -434,6 +905,7 @@ public class BugfixModClassTransformer implements IClassTransformer {
                 ));
             }
 
+            boolean log4jExploitFixNeeded = false;
             if (settings.bfLog4JExploitFixEnabled) {
                 // check if vulnerable class is present
                 boolean vulnerableJndiLookupFound = true;
@@ -485,14 +957,21 @@ public class BugfixModClassTransformer implements IClassTransformer {
                             }
                         }
                     }
-                    if (vulnerableJndiLookupFound) {
-                        addPatcher(new Log4JLoggerWrapperPatcher("Log4JExploitFix"));
-                    }
+                    log4jExploitFixNeeded = vulnerableJndiLookupFound;
                 } else {
                     logger.info("Vulnerable JndiLookup class not found; skipping Log4JExploitFix...");
                 }
             }
 
+            // The dedupe filter uses the same hook on every LogManager.getLogger call.
+            HackyMessageFactoryWrapper.wrapMessageFactory = log4jExploitFixNeeded;
+            if (settings.lgDedupe) {
+                LogDedupeFilter.configure(settings.lgDedupeBurstSize, settings.lgDedupeWindowSeconds);
+            }
+            if (log4jExploitFixNeeded || settings.lgDedupe) {
+                addPatcher(new Log4JLoggerWrapperPatcher(log4jExploitFixNeeded ? "Log4JExploitFix" : "LogDedupe"));
+            }
+
             if (settings.bfBiblioRCEFixEnabled) {
                 addPatcher(new FileRCEPatcher("BiblioRCEFix", "jds/bibliocraft/FileUtil"));
             }
@@ -500,9 +979,15 @@ public class BugfixModClassTransformer implements IClassTransformer {
     }
 
     private void addPatcher(AbstractPatcher patcher) {
+        if (profiler != null) {
+            profiler.addPatcher(patcher, patcher.getPatcherName());
+        }
         if (patcher.getTargetClassName() == null || patcher.getTargetClassName().isEmpty()) {
+            String[] constants = patcher.getRequiredConstants();
             globalPatchers.add(patcher);
             globalPatchers.trimToSize();
+            globalPatcherConstants.add(constants != null ? ConstantPoolScanner.encode(constants) : null);
+            globalPatcherConstants.trimToSize();
         } else {
             ArrayList<AbstractPatcher> list = patchers.computeIfAbsent(patcher.getTargetClassName(), k -> new ArrayList<>());
             list.add(patcher);
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.bugfixmod.coremod;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The MCP to SRG field and method name index generated at build time from
+ * ForgeGradle's mcp-srg.srg (see the genMappingIndex task).
+ *
+ * Keys are "SimpleClassName.mcpName" (with the MCP descriptor appended for
+ * methods, to tell overloads apart), each section sorted by key. An empty value
+ * marks a key which maps to more than one SRG name. Entries are looked up by
+ * binary search directly in the buffer; nothing is unpacked into maps.
+ */
+final class MappingIndex {
+    static final String RESOURCE = "pl/asie/foamfix/mcp-srg.idx";
+    private static final int MAGIC = 0x46464d49; // FFMI
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+
+    private final ByteBuffer buffer;
+    private final int fields, methods, stringsOffset;
+
+    private MappingIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.fields = buffer.getInt(8);
+        this.methods = buffer.getInt(12);
+        this.stringsOffset = HEADER_LENGTH + (fields + methods) * 4;
+    }
+
+    /**
+     * @return The index shipped with FoamFix, or null if there is none.
+     */
+    static MappingIndex load() throws IOException {
+        URL url = MappingIndex.class.getClassLoader().getResource(RESOURCE);
+        if (url == null) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel channel = FileChannel.open(new File(url.toURI()).toPath(), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        } else {
+            // Compressed inside the mod jar; cannot be mapped.
+            try (InputStream stream = url.openStream()) {
+                buffer = ByteBuffer.wrap(ByteStreams.toByteArray(stream));
+            }
+        }
+
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Invalid mapping index");
+        }
+        return new MappingIndex(buffer);
+    }
+
+    String getField(String key) {
+        return find(0, fields, key);
+    }
+
+    String getMethod(String key) {
+        return find(fields, fields + methods, key);
+    }
+
+    int getFieldCount() {
+        return fields;
+    }
+
+    int getMethodCount() {
+        return methods;
+    }
+
+    private String find(int start, int end, String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = start;
+        int high = end - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = stringsOffset + buffer.getInt(HEADER_LENGTH + mid * 4);
+            int cmp = compare(pos, key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                pos += 2 + (buffer.getShort(pos) & 0xFFFF);
+                byte[] value = new byte[buffer.getShort(pos) & 0xFFFF];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = buffer.get(pos + 2 + i);
+                }
+                return new String(value, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private int compare(int pos, byte[] key) {
+        int length = buffer.getShort(pos) & 0xFFFF;
+        pos += 2;
+        for (int i = 0; i < length && i < key.length; i++) {
+            int cmp = (buffer.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+}
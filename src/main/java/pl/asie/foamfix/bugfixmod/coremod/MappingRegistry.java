@@ -24,86 +24,116 @@
 package pl.asie.foamfix.bugfixmod.coremod;
 
 import com.google.common.collect.Maps;
-import pl.asie.foamfix.bugfixmod.BugfixModSettings;
 
+import java.io.IOException;
 import java.util.Map;
 
 /**
  * Created by Vincent on 6/6/2014.
+ *
+ * Names are looked up in the hand-written tables below first, which also cover
+ * methods and fields a class inherits, and then in the MCP to SRG index shipped
+ * with FoamFix, loaded on the first lookup which needs it. Method requests may
+ * end with an MCP descriptor, as in "Block.updateTick(Lnet/minecraft/world/World;IIILjava/util/Random;)V",
+ * to pick one of several overloads.
  */
 public class MappingRegistry {
-    private static Map<String, String> fieldMap = Maps.newHashMap();
-    private static Map<String, String> methodMap = Maps.newHashMap();
+    private static final Map<String, String> fieldMap = Maps.newHashMap();
+    private static final Map<String, String> methodMap = Maps.newHashMap();
 
     private static boolean hasInit = false;
     private static boolean isObf;
+    private static boolean indexLoaded;
+    private static MappingIndex index;
 
-    public static void init(boolean isObf) {
-        if (!hasInit) {
-            MappingRegistry.isObf = isObf;
-            if (MappingRegistry.isObf) {
-                BugfixModSettings settings = BugfixModClassTransformer.instance.settings;
+    static {
+        methodMap.put("EntityBoat.setPositionAndRotation2", "func_70056_a");
+        methodMap.put("EntityBoat.setIsBoatEmpty", "func_70270_d");
 
-                if (settings.BoatDesyncFixEnabled) {
-                    methodMap.put("EntityBoat.setPositionAndRotation2", "func_70056_a");
-                    methodMap.put("EntityBoat.setIsBoatEmpty", "func_70270_d")
-;
-                }
+        fieldMap.put("EntityChicken.tasks", "field_70714_bg");
+        methodMap.put("EntityAITasks.addTask", "func_75776_a");
+        fieldMap.put("Items.pumpkin_seeds", "field_151080_bb");
+        fieldMap.put("Items.melon_seeds", "field_151081_bc");
+        fieldMap.put("Items.nether_wart", "field_151075_bm");
 
-                if (settings.ChickenLureTweakEnabled) {
-                    fieldMap.put("EntityChicken.tasks", "field_70714_bg");
-                    methodMap.put("EntityAITasks.addTask", "func_75776_a");
-                    fieldMap.put("Items.pumpkin_seeds", "field_151080_bb");
-                    fieldMap.put("Items.melon_seeds", "field_151081_bc");
-                    fieldMap.put("Items.nether_wart", "field_151075_bm");
-                }
+        methodMap.put("EntityPlayerSP.setPlayerSPHealth", "func_71150_b");
 
-                if (settings.HeartBlinkFixEnabled) {
-                    methodMap.put("EntityPlayerSP.setPlayerSPHealth", "func_71150_b");
-                }
+        fieldMap.put("EntityClientPlayerMP.prevHealth", "field_70735_aL");
+        methodMap.put("EntityClientPlayerMP.getHealth", "func_110143_aJ");
+        methodMap.put("EntityClientPlayerMP.attackEntityFrom", "func_70097_a");
+        methodMap.put("EntityClientPlayerMP.setPlayerSPHealth", "func_71150_b");
 
-                if (settings.HeartFlashFixEnabled) {
-                    fieldMap.put("EntityClientPlayerMP.prevHealth", "field_70735_aL");
-                    methodMap.put("EntityClientPlayerMP.getHealth", "func_110143_aJ");
-                    methodMap.put("EntityClientPlayerMP.attackEntityFrom", "func_70097_a");
-                    methodMap.put("EntityClientPlayerMP.setPlayerSPHealth", "func_71150_b");
-                }
+        methodMap.put("BlockHopper.addCollisionBoxesToList", "func_149743_a");
+        methodMap.put("BlockHopper.setBlockBounds", "func_149676_a");
 
-                if (settings.ItemHopperBounceFixEnabled) {
-                    methodMap.put("BlockHopper.addCollisionBoxesToList", "func_149743_a");
-                    methodMap.put("BlockHopper.setBlockBounds", "func_149676_a");
-                }
+        methodMap.put("BlockStairs.addCollisionBoxesToList", "func_149743_a");
+        methodMap.put("BlockStairs.setBlockBounds", "func_149676_a");
 
-                if (settings.ItemStairBounceFixEnabled) {
-                    methodMap.put("BlockStairs.addCollisionBoxesToList", "func_149743_a");
-                    methodMap.put("BlockStairs.setBlockBounds", "func_149676_a");
-                }
+        methodMap.put("EntityPlayer.attackEntityFrom", "func_70097_a");
 
-                if (settings.SnowballFixEnabled) {
-                    methodMap.put("EntityPlayer.attackEntityFrom", "func_70097_a");
-                }
+        methodMap.put("StructureVillagePieces$House2.addComponentParts", "func_74875_a");
+        fieldMap.put("Blocks.anvil", "field_150467_bQ");
+        fieldMap.put("Blocks.double_stone_slab", "field_150334_T");
 
-                if (settings.VillageAnvilTweakEnabled) {
-                    methodMap.put("StructureVillagePieces$House2.addComponentParts", "func_74875_a");
-                    fieldMap.put("Blocks.anvil", "field_150467_bQ");
-                    fieldMap.put("Blocks.double_stone_slab", "field_150334_T");
-                }
+        methodMap.put("ChunkProviderServer.provideChunk", "func_73154_d");
 
-                if (settings.gbEnableDebugger) {
-                    methodMap.put("ChunkProviderServer.provideChunk", "func_73154_d");
-                }
+        methodMap.put("BlockStaticLiquid.isFlammable", "func_149817_o");
+
+        // ghost buster - general
+        methodMap.put("Block.updateTick", "func_149674_a");
+        methodMap.put("IBlockAccess.getBlock", "func_147439_a");
+        methodMap.put("IBlockAccess.isAirBlock", "func_147437_c");
+        methodMap.put("IBlockAccess.getBlockMetadata", "func_72805_g");
+        methodMap.put("IBlockAccess.getTileEntity", "func_147438_o");
+        methodMap.put("IBlockAccess.getLightBrightnessForSkyBlocks", "func_72802_i");
+        methodMap.put("IBlockAccess.getBiomeGenForCoords", "func_72807_a");
+        methodMap.put("World.getBlockLightValue", "func_72957_l");
+
+        // ghost buster - learning
+        methodMap.put("Block.onNeighborBlockChange", "func_149695_a");
+        methodMap.put("TileEntity.updateEntity", "func_145845_h");
+    }
 
-                if (settings.gbFixFluidsVanilla) {
-                    methodMap.put("BlockStaticLiquid.isFlammable", "func_149817_o");
+    public static void init(boolean isObf) {
+        if (!hasInit) {
+            MappingRegistry.isObf = isObf;
+            hasInit = true;
+        }
+    }
+
+    private static synchronized MappingIndex getIndex() {
+        if (!indexLoaded) {
+            indexLoaded = true;
+            try {
+                index = MappingIndex.load();
+                if (index == null) {
+                    BugfixModClassTransformer.instance.logger.warn("MappingRegistry: " + MappingIndex.RESOURCE + " not found; only built-in mappings are available");
+                } else {
+                    BugfixModClassTransformer.instance.logger.info("MappingRegistry: loaded index of " + index.getFieldCount() + " fields and " + index.getMethodCount() + " methods");
                 }
+            } catch (IOException e) {
+                BugfixModClassTransformer.instance.logger.warn("MappingRegistry: could not load " + MappingIndex.RESOURCE, e);
+            }
+        }
+        return index;
+    }
 
-                // ghost buster - general
-                methodMap.put("Block.updateTick", "func_149674_a");
-                methodMap.put("IBlockAccess.getBlock", "func_147439_a");
-                methodMap.put("IBlockAccess.isAirBlock", "func_147437_c");
+    private static String lookup(String type, Map<String, String> builtin, String request, boolean method) {
+        String get = builtin.get(request);
+        if (get == null) {
+            MappingIndex index = getIndex();
+            if (index != null) {
+                get = method ? index.getMethod(request) : index.getField(request);
+                if (get != null && get.isEmpty()) {
+                    BugfixModClassTransformer.instance.logger.warn("MappingRegistry: " + type + " lookup " + request + " is ambiguous; add the MCP descriptor");
+                    return null;
+                }
             }
-            hasInit = true;
         }
+        if (get == null) {
+            BugfixModClassTransformer.instance.logger.warn("MappingRegistry just returned null for " + type + " lookup: " + request);
+        }
+        return get;
     }
 
     public static String getFieldNameFor(String request) {
@@ -111,24 +141,18 @@ public class MappingRegistry {
         if (!isObf) {
             return request.substring(request.lastIndexOf(".") + 1); // return second half, the fieldname
         } else {
-            String get = fieldMap.get(request);
-            if (get == null) {
-                BugfixModClassTransformer.instance.logger.warn("MappingRegistry just returned null for field lookup: " + request);
-            }
-            return get;
+            return lookup("field", fieldMap, request, false);
         }
     }
 
     public static String getMethodNameFor(String request) {
-        // par1 will be in the format className.methodName
+        // par1 will be in the format className.methodName, optionally followed by a descriptor
         if (!isObf) {
-            return request.substring(request.lastIndexOf(".") + 1); // return second half, the methodname
+            int descIndex = request.indexOf('(');
+            String name = descIndex >= 0 ? request.substring(0, descIndex) : request;
+            return name.substring(name.lastIndexOf(".") + 1); // return second half, the methodname
         } else {
-            String get = methodMap.get(request);
-            if (get == null) {
-                BugfixModClassTransformer.instance.logger.warn("MappingRegistry just returned null for method lookup: " + request);
-            }
-            return get;
+            return lookup("method", methodMap, request, true);
         }
     }
 }
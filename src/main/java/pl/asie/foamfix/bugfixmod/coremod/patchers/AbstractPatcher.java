@@ -54,6 +54,16 @@ public abstract class AbstractPatcher {
         return targetClassName;
     }
 
+    /**
+     * For global patchers: strings which must all be present in a class's
+     * constant pool for this patcher to possibly apply to it, such as the
+     * internal names of the classes it looks for. Classes lacking any of them
+     * are not parsed for this patcher. Null means every class is a candidate.
+     */
+    public String[] getRequiredConstants() {
+        return null;
+    }
+
     protected void patchMethodNode(MethodNode method) {
         if (this instanceof GlobalModificationPatcher) {
             ((GlobalModificationPatcher) this).modifyInsnsGlobal(method.instructions);
@@ -77,9 +87,36 @@ public abstract class AbstractPatcher {
         }
     }
 
+    public boolean isTargetMethod(String name, String desc) {
+        return (targetMethodName == null || name.equals(targetMethodName)) && (targetMethodDesc == null || desc.equals(targetMethodDesc));
+    }
+
+    /**
+     * Whether this patcher only ever modifies the methods accepted by
+     * {@link #isTargetMethod(String, String)}, leaving fields, other methods and
+     * class attributes alone. Such classes are written out by copying every
+     * untouched method verbatim.
+     *
+     * Patchers overriding {@link #patchClassNode(ClassNode)} to make
+     * class-level changes must have an empty target method name or override this.
+     */
+    public boolean isMethodLocal() {
+        return targetMethodName != null && !targetMethodName.isEmpty();
+    }
+
+    /**
+     * Whether this patcher's output depends only on the bytes of the class being
+     * patched. Patchers which look at other classes, such as their superclass
+     * chains, must return false so the class is never served from the
+     * transformed class cache, whose key covers only the class's own bytes.
+     */
+    public boolean isCacheable() {
+        return true;
+    }
+
     protected void patchClassNode(ClassNode classNode) {
         for (MethodNode method : classNode.methods) {
-            if ((targetMethodName == null || method.name.equals(targetMethodName)) && (targetMethodDesc == null || method.desc.equals(targetMethodDesc))) {
+            if (isTargetMethod(method.name, method.desc)) {
                 if (targetMethodName != null) {
                     printMessage("Found target method");
                 }
@@ -88,6 +125,24 @@ public abstract class AbstractPatcher {
         }
     }
 
+    /**
+     * Applies this patcher to an already parsed class, which may be shared with
+     * the other patchers targeting the same class.
+     *
+     * Global patchers (empty target class name) must leave the class untouched
+     * if they do not apply to it.
+     *
+     * @return Whether the transform was applied.
+     */
+    public boolean patch(String transformedName, ClassNode classNode) {
+        successful = false;
+
+        patchClassNode(classNode);
+
+        if (!targetClassName.isEmpty()) printMessage(successful ? "Applied transform!" : "Failed to apply transform!");
+        return successful;
+    }
+
     public byte[] patch(String transformedName, byte[] bytes) {
         ClassNode classNode = new ClassNode();
         ClassReader classReader = null;
@@ -98,17 +153,12 @@ public abstract class AbstractPatcher {
             return bytes;
         }
         classReader.accept(classNode, 0);
-        successful = false;
-
-        patchClassNode(classNode);
 
-        if (!successful) {
-            if (!targetClassName.isEmpty()) printMessage("Failed to apply transform!");
+        if (!patch(transformedName, classNode)) {
             return bytes;
         } else {
             ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
             classNode.accept(writer);
-            if (!targetClassName.isEmpty()) printMessage(successful ? "Applied transform!" : "Failed to apply transform!");
             return writer.toByteArray();
         }
     }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.bugfixmod.coremod.patchers;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Iterator;
+
+/**
+ * Base class for patchers which only make local changes to the methods they
+ * target, such as redirecting a call or injecting one at method entry.
+ *
+ * Instead of working on a ClassNode, they are chained between the ClassReader
+ * and ClassWriter, so classes touched only by such patchers are transformed in a
+ * single streaming pass. When a class also has tree-based patchers, visitor
+ * patchers are applied while the ClassNode is being built, before the others.
+ */
+public abstract class AbstractVisitorPatcher extends AbstractPatcher {
+    public AbstractVisitorPatcher(String name, String targetClassName, String targetMethodName, String targetMethodDesc) {
+        super(name, targetClassName, targetMethodName, targetMethodDesc);
+    }
+
+    /**
+     * Wraps the visitor of a target method. Set {@link #successful} once the
+     * patch has been applied.
+     *
+     * @param className The internal name of the class being patched.
+     */
+    protected abstract MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc);
+
+    /**
+     * Starts applying this patcher to a class; the returned visitor must then be
+     * driven by a ClassReader, after which {@link #end()} is called.
+     */
+    public ClassVisitor begin(String transformedName, ClassVisitor next) {
+        successful = false;
+
+        return new ClassVisitor(Opcodes.ASM5, next) {
+            private String className;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                className = name;
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+                if (mv != null && isTargetMethod(name, desc)) {
+                    if (targetMethodName != null) {
+                        printMessage("Found target method");
+                    }
+                    return createMethodVisitor(className, mv, access, name, desc);
+                }
+                return mv;
+            }
+        };
+    }
+
+    /**
+     * @return Whether the transform was applied.
+     */
+    public boolean end() {
+        if (!targetClassName.isEmpty()) printMessage(successful ? "Applied transform!" : "Failed to apply transform!");
+        return successful;
+    }
+
+    @Override
+    public boolean isMethodLocal() {
+        return true;
+    }
+
+    @Override
+    protected void patchClassNode(ClassNode classNode) {
+        for (int i = 0; i < classNode.methods.size(); i++) {
+            MethodNode method = classNode.methods.get(i);
+            if (isTargetMethod(method.name, method.desc)) {
+                if (targetMethodName != null) {
+                    printMessage("Found target method");
+                }
+                MethodNode patched = new MethodNode(Opcodes.ASM5, method.access, method.name, method.desc, method.signature,
+                        method.exceptions.toArray(new String[0]));
+                method.accept(createMethodVisitor(classNode.name, patched, method.access, method.name, method.desc));
+                classNode.methods.set(i, patched);
+            }
+        }
+    }
+
+    @Override
+    public final InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
+        return null;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import cpw.mods.fml.relauncher.ReflectionHelper;
+import net.minecraft.launchwrapper.IClassTransformer;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Wraps every IClassTransformer registered with the LaunchClassLoader, including
+ * those of other coremods, to find out which of them are responsible for slow startups.
+ *
+ * Time spent loading (and transforming) other classes from within a transformer is
+ * attributed to the transformers involved in that nested load, not the outer one.
+ */
+public final class ClassTransformerProfiler {
+    private static final int MAX_CHANGED_CLASS_NAMES = 100;
+    private static final ThreadLocal<long[]> nestedNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    public static final class Wrapper implements IClassTransformer {
+        private final IClassTransformer parent;
+        private final String name;
+        private long invocations, changed, rewritten, nanos;
+        private final List<String> changedClassNames = new ArrayList<>();
+
+        private Wrapper(IClassTransformer parent) {
+            this.parent = parent;
+            this.name = parent.getClass().getName();
+        }
+
+        public IClassTransformer getParent() {
+            return parent;
+        }
+
+        @Override
+        public byte[] transform(String name, String transformedName, byte[] bytes) {
+            long[] nested = nestedNanos.get();
+            long outerNested = nested[0];
+            nested[0] = 0;
+
+            long start = System.nanoTime();
+            byte[] result;
+            try {
+                result = parent.transform(name, transformedName, bytes);
+            } finally {
+                long time = System.nanoTime() - start;
+                long self = time - nested[0];
+                nested[0] = outerNested + time;
+
+                synchronized (this) {
+                    invocations++;
+                    nanos += self;
+                }
+            }
+
+            if (result != bytes) {
+                if (result == null || bytes == null || !Arrays.equals(result, bytes)) {
+                    synchronized (this) {
+                        changed++;
+                        if (changedClassNames.size() < MAX_CHANGED_CLASS_NAMES) {
+                            changedClassNames.add(transformedName);
+                        }
+                    }
+                } else {
+                    synchronized (this) {
+                        rewritten++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private synchronized long getNanos() {
+            return nanos;
+        }
+
+        private synchronized JsonObject toJson() {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", name);
+            object.addProperty("invocations", invocations);
+            object.addProperty("changed", changed);
+            object.addProperty("rewrittenUnchanged", rewritten);
+            object.addProperty("nanos", nanos);
+            JsonArray classes = new JsonArray();
+            for (String s : changedClassNames) {
+                classes.add(new JsonPrimitive(s));
+            }
+            object.add("changedClasses", classes);
+            return object;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %.1f ms, %d classes, %d changed, %d rewritten without changes",
+                    name, nanos / 1000000.0, invocations, changed, rewritten);
+        }
+    }
+
+    private static final class WrappingList extends ArrayList<IClassTransformer> {
+        private WrappingList(Collection<IClassTransformer> transformers) {
+            for (IClassTransformer transformer : transformers) {
+                add(transformer);
+            }
+        }
+
+        private static IClassTransformer wrap(IClassTransformer transformer) {
+            return transformer == null || transformer instanceof Wrapper ? transformer : new Wrapper(transformer);
+        }
+
+        @Override
+        public boolean add(IClassTransformer transformer) {
+            return super.add(wrap(transformer));
+        }
+
+        @Override
+        public void add(int index, IClassTransformer transformer) {
+            super.add(index, wrap(transformer));
+        }
+
+        @Override
+        public IClassTransformer set(int index, IClassTransformer transformer) {
+            return super.set(index, wrap(transformer));
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends IClassTransformer> c) {
+            boolean changed = false;
+            for (IClassTransformer transformer : c) {
+                changed |= add(transformer);
+            }
+            return changed;
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends IClassTransformer> c) {
+            for (IClassTransformer transformer : c) {
+                add(index++, transformer);
+            }
+            return !c.isEmpty();
+        }
+    }
+
+    private final LaunchClassLoader loader;
+    private final Field transformersField;
+    private final List<IClassTransformer> originalList;
+    private final WrappingList list;
+
+    private ClassTransformerProfiler(LaunchClassLoader loader, Field transformersField, List<IClassTransformer> originalList) {
+        this.loader = loader;
+        this.transformersField = transformersField;
+        this.originalList = originalList;
+        this.list = new WrappingList(originalList);
+    }
+
+    /**
+     * Replace the LaunchClassLoader's transformer list with one which wraps every
+     * present and future transformer in a {@link Wrapper}.
+     *
+     * @return The installed profiler, or null if the class loader could not be patched.
+     */
+    @SuppressWarnings("unchecked")
+    public static ClassTransformerProfiler install(Logger logger) {
+        ClassLoader classLoader = ClassTransformerProfiler.class.getClassLoader();
+        if (!(classLoader instanceof LaunchClassLoader)) {
+            return null;
+        }
+
+        LaunchClassLoader loader = (LaunchClassLoader) classLoader;
+        try {
+            Field transformersField = ReflectionHelper.findField(LaunchClassLoader.class, "transformers");
+            synchronized (loader) {
+                ClassTransformerProfiler profiler = new ClassTransformerProfiler(loader, transformersField, (List<IClassTransformer>) transformersField.get(loader));
+                transformersField.set(loader, profiler.list);
+                return profiler;
+            }
+        } catch (Exception e) {
+            logger.warn("Could not install class transformer profiler!", e);
+            return null;
+        }
+    }
+
+    /**
+     * Put the original transformers back in place, so that nothing looking at
+     * LaunchClassLoader.getTransformers() after startup sees the wrappers.
+     */
+    public void uninstall(Logger logger) {
+        try {
+            synchronized (loader) {
+                if (transformersField.get(loader) != list) {
+                    logger.warn("LaunchClassLoader transformer list was replaced by someone else, leaving it alone");
+                    return;
+                }
+
+                originalList.clear();
+                for (IClassTransformer transformer : list) {
+                    originalList.add(transformer instanceof Wrapper ? ((Wrapper) transformer).getParent() : transformer);
+                }
+                transformersField.set(loader, originalList);
+            }
+        } catch (Exception e) {
+            logger.warn("Could not uninstall class transformer profiler!", e);
+        }
+    }
+
+    public void report(Logger logger, File jsonFile) {
+        List<Wrapper> wrappers = new ArrayList<>();
+        synchronized (loader) {
+            for (IClassTransformer transformer : list) {
+                if (transformer instanceof Wrapper) {
+                    wrappers.add((Wrapper) transformer);
+                }
+            }
+        }
+        wrappers.sort((a, b) -> Long.compare(b.getNanos(), a.getNanos()));
+
+        logger.info("Class transformer chain profile:");
+        JsonArray array = new JsonArray();
+        for (Wrapper wrapper : wrappers) {
+            logger.info("- " + wrapper);
+            array.add(wrapper.toJson());
+        }
+
+        JsonObject root = new JsonObject();
+        root.add("transformers", array);
+        TransformerProfiler.writeJson(logger, jsonFile, root);
+    }
+}
@@ -30,12 +30,14 @@ import cpw.mods.fml.common.LoadController;
 import cpw.mods.fml.common.ModMetadata;
 
 public class FoamFixCoreContainer extends DummyModContainer {
+    public static final String VERSION = "@VERSION@";
+
     public FoamFixCoreContainer() {
         super(new ModMetadata());
         ModMetadata myMeta = super.getMetadata();
         myMeta.authorList = Lists.newArrayList("williewillus", "asie");
         myMeta.modId = "FoamFixCore";
-        myMeta.version = "@VERSION@";
+        myMeta.version = VERSION;
         myMeta.name = "FoamFixCore";
     }
 
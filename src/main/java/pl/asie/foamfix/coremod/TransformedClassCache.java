@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of class bytes produced by FoamFix's own transformer.
+ *
+ * Records (key, length, bytes) are appended to a single pack file; a sorted
+ * (key, offset) index is memory-mapped and binary searched on lookup. Both
+ * files carry an environment key (FoamFix version, settings, active patchers,
+ * deobfuscation state) and are discarded as soon as it changes.
+ *
+ * The index is written to two alternating slots, so that a new index is never
+ * written over the file which is currently mapped.
+ */
+public final class TransformedClassCache {
+    private static final int PACK_MAGIC = 0x46464350; // FFCP
+    private static final int INDEX_MAGIC = 0x46464349; // FFCI
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int KEY_LENGTH = 20; // SHA-1
+    private static final int ENVIRONMENT_KEY_LENGTH = 32; // SHA-256
+    private static final int PACK_HEADER_LENGTH = 8 + ENVIRONMENT_KEY_LENGTH;
+    private static final int INDEX_HEADER_LENGTH = 8 + ENVIRONMENT_KEY_LENGTH + 8 + 8 + 4;
+    private static final int INDEX_ENTRY_LENGTH = KEY_LENGTH + 8;
+    private static final int RECORD_HEADER_LENGTH = KEY_LENGTH + 4;
+
+    private static final int UNCHANGED = -1;
+    private static final long MAX_PACK_LENGTH = 256L * 1024 * 1024;
+
+    private final File directory;
+    private final byte[] environmentKey;
+    private final Logger logger;
+    private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private FileChannel pack;
+    private long packLength;
+    private ByteBuffer index;
+    private int indexEntries;
+    private int indexSlot = -1;
+    private long indexGeneration;
+    private final Map<ByteBuffer, Long> pendingEntries = new HashMap<>();
+    private boolean dirty;
+    private long hits, misses;
+
+    private TransformedClassCache(File directory, byte[] environmentKey, Logger logger) {
+        this.directory = directory;
+        this.environmentKey = environmentKey;
+        this.logger = logger;
+    }
+
+    public static TransformedClassCache open(File directory, byte[] environmentKey, Logger logger) {
+        if (environmentKey.length != ENVIRONMENT_KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid environment key length: " + environmentKey.length);
+        }
+
+        TransformedClassCache cache = new TransformedClassCache(directory, environmentKey, logger);
+        try {
+            cache.load();
+            return cache;
+        } catch (IOException e) {
+            logger.warn("Could not open transformed class cache in " + directory + "!", e);
+            return null;
+        }
+    }
+
+    public byte[] getKey(String transformedName, byte[] bytes) {
+        MessageDigest md = digest.get();
+        md.update(transformedName.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(bytes);
+        return md.digest();
+    }
+
+    /**
+     * @return The cached transformer output (the input array itself if the
+     * class was left unchanged), or null if there is no entry for this key.
+     */
+    public synchronized byte[] get(byte[] key, byte[] input) {
+        Long pendingOffset = pendingEntries.get(ByteBuffer.wrap(key));
+        long offset = pendingOffset != null ? pendingOffset : findInIndex(key);
+        if (offset >= 0) {
+            try {
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+                readFully(header, offset);
+                byte[] recordKey = new byte[KEY_LENGTH];
+                header.get(recordKey);
+                int length = header.getInt();
+                if (Arrays.equals(recordKey, key)) {
+                    hits++;
+                    if (length == UNCHANGED) {
+                        return input;
+                    } else {
+                        ByteBuffer data = ByteBuffer.allocate(length);
+                        readFully(data, offset + RECORD_HEADER_LENGTH);
+                        return data.array();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Could not read from transformed class cache!", e);
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(byte[] key, byte[] input, byte[] output) {
+        if (pack == null || packLength >= MAX_PACK_LENGTH) {
+            return;
+        }
+
+        int length = output == input ? UNCHANGED : output.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + Math.max(length, 0));
+        record.put(key);
+        record.putInt(length);
+        if (length != UNCHANGED) {
+            record.put(output);
+        }
+        record.flip();
+
+        try {
+            writeFully(record, packLength);
+            pendingEntries.put(ByteBuffer.wrap(key), packLength);
+            packLength += record.capacity();
+            dirty = true;
+        } catch (IOException e) {
+            logger.warn("Could not write to transformed class cache; disabling!", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes an index covering every record appended so far.
+     */
+    public synchronized void flush() {
+        if (pack == null || !dirty) {
+            return;
+        }
+
+        List<byte[]> keys = new ArrayList<>(indexEntries + pendingEntries.size());
+        Map<ByteBuffer, Long> offsets = new HashMap<>(pendingEntries);
+        for (int i = 0; i < indexEntries; i++) {
+            int pos = INDEX_HEADER_LENGTH + i * INDEX_ENTRY_LENGTH;
+            byte[] key = new byte[KEY_LENGTH];
+            for (int j = 0; j < KEY_LENGTH; j++) {
+                key[j] = index.get(pos + j);
+            }
+            if (!offsets.containsKey(ByteBuffer.wrap(key))) {
+                offsets.put(ByteBuffer.wrap(key), index.getLong(pos + KEY_LENGTH));
+            }
+        }
+        for (ByteBuffer key : offsets.keySet()) {
+            keys.add(key.array());
+        }
+        keys.sort(TransformedClassCache::compareKeys);
+
+        ByteBuffer data = ByteBuffer.allocate(INDEX_HEADER_LENGTH + keys.size() * INDEX_ENTRY_LENGTH);
+        data.putInt(INDEX_MAGIC);
+        data.putInt(FORMAT_VERSION);
+        data.put(environmentKey);
+        data.putLong(++indexGeneration);
+        data.putLong(packLength);
+        data.putInt(keys.size());
+        for (byte[] key : keys) {
+            data.put(key);
+            data.putLong(offsets.get(ByteBuffer.wrap(key)));
+        }
+        data.flip();
+
+        // Never overwrite the currently mapped index.
+        File indexFile = getIndexFile(indexSlot == 0 ? 1 : 0);
+        try {
+            pack.force(false);
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            dirty = false;
+        } catch (IOException e) {
+            logger.warn("Could not write transformed class cache index!", e);
+        }
+    }
+
+    public synchronized void close() {
+        if (pack != null) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                // pass
+            }
+            pack = null;
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return hits + " hits, " + misses + " misses, " + (packLength >> 10) + " KB";
+    }
+
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        pack = FileChannel.open(new File(directory, "classes.pack").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        packLength = pack.size();
+
+        boolean valid = false;
+        if (packLength >= PACK_HEADER_LENGTH && packLength < MAX_PACK_LENGTH) {
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_LENGTH);
+            readFully(header, 0);
+            valid = isHeaderValid(header, PACK_MAGIC);
+        }
+
+        if (!valid) {
+            if (packLength > 0) {
+                logger.info("Transformed class cache out of date, clearing...");
+            }
+            for (int i = 0; i < 2; i++) {
+                getIndexFile(i).delete();
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_LENGTH);
+            header.putInt(PACK_MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.put(environmentKey);
+            header.flip();
+            pack.truncate(0);
+            writeFully(header, 0);
+            packLength = PACK_HEADER_LENGTH;
+            return;
+        }
+
+        long indexedPackLength = PACK_HEADER_LENGTH;
+        for (int i = 0; i < 2; i++) {
+            File indexFile = getIndexFile(i);
+            if (!indexFile.isFile() || indexFile.length() < INDEX_HEADER_LENGTH) {
+                continue;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header) >= 0) {
+                    // pass
+                }
+            }
+            header.flip();
+            if (header.remaining() < INDEX_HEADER_LENGTH || !isHeaderValid(header, INDEX_MAGIC)) {
+                continue;
+            }
+
+            long generation = header.getLong();
+            long recordedPackLength = header.getLong();
+            int entries = header.getInt();
+            if (recordedPackLength > packLength
+                    || entries < 0
+                    || indexFile.length() != INDEX_HEADER_LENGTH + (long) entries * INDEX_ENTRY_LENGTH
+                    || (indexSlot >= 0 && generation <= indexGeneration)) {
+                continue;
+            }
+
+            indexEntries = entries;
+            indexSlot = i;
+            indexGeneration = generation;
+            indexedPackLength = recordedPackLength;
+        }
+
+        if (indexSlot >= 0) {
+            // Only the chosen slot is ever mapped; flush() writes to the other one.
+            try (FileChannel channel = FileChannel.open(getIndexFile(indexSlot).toPath(), StandardOpenOption.READ)) {
+                index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        // Pick up records appended after the index was last written.
+        scanPack(indexedPackLength);
+    }
+
+    private void scanPack(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        while (offset + RECORD_HEADER_LENGTH <= packLength) {
+            header.clear();
+            readFully(header, offset);
+            byte[] key = new byte[KEY_LENGTH];
+            header.get(key);
+            int length = header.getInt();
+            long next = offset + RECORD_HEADER_LENGTH + Math.max(length, 0);
+            if (length < UNCHANGED || next > packLength) {
+                break;
+            }
+
+            pendingEntries.put(ByteBuffer.wrap(key), offset);
+            dirty = true;
+            offset = next;
+        }
+
+        if (offset != packLength) {
+            // Torn write from an earlier run.
+            pack.truncate(offset);
+            packLength = offset;
+        }
+    }
+
+    private long findInIndex(byte[] key) {
+        int low = 0;
+        int high = indexEntries - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = INDEX_HEADER_LENGTH + mid * INDEX_ENTRY_LENGTH;
+            int cmp = 0;
+            for (int i = 0; i < KEY_LENGTH && cmp == 0; i++) {
+                cmp = (index.get(pos + i) & 0xFF) - (key[i] & 0xFF);
+            }
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return index.getLong(pos + KEY_LENGTH);
+            }
+        }
+        return -1;
+    }
+
+    private boolean isHeaderValid(ByteBuffer buffer, int magic) {
+        if (buffer.getInt() != magic || buffer.getInt() != FORMAT_VERSION) {
+            return false;
+        }
+        byte[] key = new byte[ENVIRONMENT_KEY_LENGTH];
+        buffer.get(key);
+        return Arrays.equals(key, environmentKey);
+    }
+
+    private File getIndexFile(int slot) {
+        return new File(directory, "classes.idx." + slot);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = pack.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of transformed class cache");
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            pack.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static int compareKeys(byte[] a, byte[] b) {
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cumulative timing statistics for FoamFix's own class transformer.
+ *
+ * Recording only updates counters and keeps references to class names;
+ * all formatting is deferred to {@link #report(Logger, File)}.
+ */
+public final class TransformerProfiler {
+    private static final int SLOWEST_CLASS_COUNT = 20;
+
+    public static final class Counter {
+        private final String name;
+        private long invocations, applied, nanos, bytesIn, bytesOut, allocated, cacheHits, cacheMisses;
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public synchronized void record(long nanos, int bytesIn, int bytesOut, boolean applied) {
+            this.invocations++;
+            this.nanos += nanos;
+            this.bytesIn += bytesIn;
+            this.bytesOut += bytesOut;
+            if (applied) {
+                this.applied++;
+            }
+        }
+
+        private synchronized long getNanos() {
+            return nanos;
+        }
+
+        public synchronized void addBytesOut(int bytesOut) {
+            this.bytesOut += bytesOut;
+        }
+
+        public synchronized void addAllocated(long allocated) {
+            this.allocated += allocated;
+        }
+
+        /**
+         * Records a lookup in a cache used by this step, such as the parsed splice sources.
+         */
+        public synchronized void recordCacheLookup(boolean hit) {
+            if (hit) {
+                this.cacheHits++;
+            } else {
+                this.cacheMisses++;
+            }
+        }
+
+        private synchronized JsonObject toJson() {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", name);
+            object.addProperty("invocations", invocations);
+            object.addProperty("applied", applied);
+            object.addProperty("nanos", nanos);
+            object.addProperty("bytesIn", bytesIn);
+            object.addProperty("bytesOut", bytesOut);
+            if (allocated > 0) {
+                object.addProperty("allocated", allocated);
+            }
+            if (cacheHits > 0 || cacheMisses > 0) {
+                object.addProperty("cacheHits", cacheHits);
+                object.addProperty("cacheMisses", cacheMisses);
+            }
+            return object;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %d calls (%d applied), %.1f ms, %d KB in, %d KB out",
+                    name, invocations, applied, nanos / 1000000.0, bytesIn >> 10, bytesOut >> 10)
+                    + (allocated > 0 ? ", " + (allocated >> 10) + " KB allocated" : "")
+                    + (cacheHits > 0 || cacheMisses > 0 ? ", " + cacheHits + " cache hits, " + cacheMisses + " misses" : "");
+        }
+    }
+
+    public final Counter total = new Counter("total");
+    public final Counter parse = new Counter("parse");
+    public final Counter stream = new Counter("stream");
+    public final Counter write = new Counter("write");
+    public final Counter cache = new Counter("cache");
+    public final Counter splice = new Counter("splice");
+    public final Counter ears = new Counter("ears");
+    private final Map<Object, Counter> patcherCounters = new IdentityHashMap<>();
+
+    private final com.sun.management.ThreadMXBean threadBean;
+
+    private final String[] slowestClassNames = new String[SLOWEST_CLASS_COUNT];
+    private final long[] slowestClassNanos = new long[SLOWEST_CLASS_COUNT];
+    private volatile long slowestClassThreshold;
+
+    public TransformerProfiler() {
+        com.sun.management.ThreadMXBean bean = null;
+        try {
+            java.lang.management.ThreadMXBean platformBean = ManagementFactory.getThreadMXBean();
+            if (platformBean instanceof com.sun.management.ThreadMXBean) {
+                bean = (com.sun.management.ThreadMXBean) platformBean;
+                if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+                    bean = null;
+                }
+            }
+        } catch (Throwable t) {
+            // not a HotSpot-like JVM
+            bean = null;
+        }
+        threadBean = bean;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or -1 if the JVM does not track it.
+     */
+    public long getAllocatedBytes() {
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Must be called for every patcher before transformation starts.
+     */
+    public void addPatcher(Object patcher, String name) {
+        patcherCounters.put(patcher, new Counter(name));
+    }
+
+    public Counter getPatcher(Object patcher) {
+        return patcherCounters.get(patcher);
+    }
+
+    public void recordClass(String transformedName, long nanos) {
+        if (nanos <= slowestClassThreshold) {
+            return;
+        }
+
+        synchronized (slowestClassNames) {
+            int minIndex = 0;
+            for (int i = 1; i < SLOWEST_CLASS_COUNT; i++) {
+                if (slowestClassNanos[i] < slowestClassNanos[minIndex]) {
+                    minIndex = i;
+                }
+            }
+
+            if (nanos > slowestClassNanos[minIndex]) {
+                slowestClassNames[minIndex] = transformedName;
+                slowestClassNanos[minIndex] = nanos;
+
+                long threshold = Long.MAX_VALUE;
+                for (int i = 0; i < SLOWEST_CLASS_COUNT; i++) {
+                    threshold = Math.min(threshold, slowestClassNanos[i]);
+                }
+                slowestClassThreshold = threshold;
+            }
+        }
+    }
+
+    public void report(Logger logger, File jsonFile) {
+        List<Counter> patchers = new ArrayList<>(patcherCounters.values());
+        patchers.sort((a, b) -> Long.compare(b.getNanos(), a.getNanos()));
+
+        List<Integer> slowest = new ArrayList<>();
+        synchronized (slowestClassNames) {
+            for (int i = 0; i < SLOWEST_CLASS_COUNT; i++) {
+                if (slowestClassNames[i] != null) {
+                    slowest.add(i);
+                }
+            }
+            slowest.sort((a, b) -> Long.compare(slowestClassNanos[b], slowestClassNanos[a]));
+        }
+
+        logger.info("Class transformer profile:");
+        for (Counter c : new Counter[] { total, parse, stream, write, cache, splice, ears }) {
+            logger.info("- " + c);
+        }
+        for (Counter c : patchers) {
+            logger.info("- [" + c.name + "] " + c);
+        }
+        logger.info("Slowest classes:");
+        for (int i : slowest) {
+            logger.info(String.format("- %s: %.2f ms", slowestClassNames[i], slowestClassNanos[i] / 1000000.0));
+        }
+
+        JsonObject root = new JsonObject();
+        JsonArray stageArray = new JsonArray();
+        for (Counter c : new Counter[] { total, parse, stream, write, cache, splice, ears }) {
+            stageArray.add(c.toJson());
+        }
+        root.add("stages", stageArray);
+        JsonArray patcherArray = new JsonArray();
+        for (Counter c : patchers) {
+            patcherArray.add(c.toJson());
+        }
+        root.add("patchers", patcherArray);
+        JsonArray slowestArray = new JsonArray();
+        for (int i : slowest) {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", slowestClassNames[i]);
+            object.addProperty("nanos", slowestClassNanos[i]);
+            slowestArray.add(object);
+        }
+        root.add("slowestClasses", slowestArray);
+
+        writeJson(logger, jsonFile, root);
+    }
+
+    static void writeJson(Logger logger, File jsonFile, JsonObject root) {
+        try {
+            File parent = jsonFile.getParentFile();
+            if (parent != null && !parent.isDirectory()) {
+                parent.mkdirs();
+            }
+            try (Writer writer = new OutputStreamWriter(Files.newOutputStream(jsonFile.toPath()), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(root, writer);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write profile to " + jsonFile + "!", e);
+        }
+    }
+}
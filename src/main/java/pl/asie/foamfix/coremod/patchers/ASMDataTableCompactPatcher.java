@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod.patchers;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
+
+/**
+ * Injects CompactASMDataTable at the start of ASMDataTable.addASMData, interning
+ * the annotation, class and member name arguments.
+ */
+public class ASMDataTableCompactPatcher extends AbstractVisitorPatcher {
+    public ASMDataTableCompactPatcher(String name, String targetClassName, String targetMethodName, String targetMethodDesc) {
+        super(name, targetClassName, targetMethodName, targetMethodDesc);
+    }
+
+    @Override
+    protected MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc) {
+        return new MethodVisitor(Opcodes.ASM5, mv) {
+            @Override
+            public void visitCode() {
+                super.visitCode();
+                if (successful) {
+                    return;
+                }
+
+                super.visitVarInsn(Opcodes.ALOAD, 0);
+                super.visitMethodInsn(
+                        Opcodes.INVOKESTATIC,
+                        "pl/asie/foamfix/CompactASMDataTable",
+                        "onAddASMData",
+                        "(Lcpw/mods/fml/common/discovery/ASMDataTable;)V",
+                        false
+                );
+                // annotation, className, objectName
+                for (int i = 2; i <= 4; i++) {
+                    super.visitVarInsn(Opcodes.ALOAD, i);
+                    super.visitMethodInsn(
+                            Opcodes.INVOKESTATIC,
+                            "pl/asie/foamfix/CompactASMDataTable",
+                            "intern",
+                            "(Ljava/lang/String;)Ljava/lang/String;",
+                            false
+                    );
+                    super.visitVarInsn(Opcodes.ASTORE, i);
+                }
+                successful = true;
+            }
+        };
+    }
+}
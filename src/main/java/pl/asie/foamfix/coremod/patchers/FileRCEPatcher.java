@@ -23,48 +23,40 @@
 
 package pl.asie.foamfix.coremod.patchers;
 
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.*;
-import pl.asie.foamfix.FoamFixMod;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.ModificationPatcher;
-import pl.asie.foamfix.coremod.util.ClassSplicingUtil;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
 
-import java.io.File;
-import java.util.Iterator;
-
-public class FileRCEPatcher extends AbstractPatcher implements ModificationPatcher {
+public class FileRCEPatcher extends AbstractVisitorPatcher {
     public FileRCEPatcher(String name, String targetClassName) {
         super(name, targetClassName, null, null);
     }
 
     @Override
-    public InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
-        return null;
-    }
-
-    @Override
-    public void modifyInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet, InsnList instructions) {
-        if (currentInstruction.getOpcode() == Opcodes.INVOKESPECIAL && currentInstruction instanceof MethodInsnNode) {
-            MethodInsnNode currentMethodInsn = (MethodInsnNode) currentInstruction;
-            if ("java/io/File".equals(currentMethodInsn.owner) && "<init>".equals(currentMethodInsn.name)) {
-                if ("(Ljava/lang/String;Ljava/lang/String;)V".equals(currentMethodInsn.desc) || "(Ljava/io/File;Ljava/lang/String;)V".equals(currentMethodInsn.desc)) {
-                    printMessage("Wrapping File constructor...");
-                    String newDesc = currentMethodInsn.desc.substring(0, currentMethodInsn.desc.length() - 1) + "Ljava/io/File;";
-                    instructions.insertBefore(currentInstruction, new MethodInsnNode(
-                            Opcodes.INVOKESTATIC,
-                            "pl/asie/foamfix/ProxyCommon",
-                            "createFileSafe",
-                            newDesc, false
-                    ));
-                    instructions.insertBefore(currentInstruction, new InsnNode(Opcodes.SWAP));
-                    instructions.insertBefore(currentInstruction, new InsnNode(Opcodes.POP));
-                    instructions.insertBefore(currentInstruction, new InsnNode(Opcodes.SWAP));
-                    instructions.insertBefore(currentInstruction, new InsnNode(Opcodes.POP));
-                    instructions.remove(currentMethodInsn);
-                    successful = true;
+    protected MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc) {
+        return new MethodVisitor(Opcodes.ASM5, mv) {
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                if (opcode == Opcodes.INVOKESPECIAL && "java/io/File".equals(owner) && "<init>".equals(name)) {
+                    if ("(Ljava/lang/String;Ljava/lang/String;)V".equals(desc) || "(Ljava/io/File;Ljava/lang/String;)V".equals(desc)) {
+                        printMessage("Wrapping File constructor...");
+                        String newDesc = desc.substring(0, desc.length() - 1) + "Ljava/io/File;";
+                        super.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                "pl/asie/foamfix/ProxyCommon",
+                                "createFileSafe",
+                                newDesc, false
+                        );
+                        super.visitInsn(Opcodes.SWAP);
+                        super.visitInsn(Opcodes.POP);
+                        super.visitInsn(Opcodes.SWAP);
+                        super.visitInsn(Opcodes.POP);
+                        successful = true;
+                        return;
+                    }
                 }
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
             }
-        }
+        };
     }
 }
@@ -24,26 +24,18 @@
 package pl.asie.foamfix.coremod.patchers;
 
 import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.FrameNode;
-import org.objectweb.asm.tree.InsnList;
-import org.objectweb.asm.tree.InsnNode;
-import org.objectweb.asm.tree.JumpInsnNode;
-import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.MethodInsnNode;
-import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.Type;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
 import pl.asie.foamfix.bugfixmod.coremod.MappingRegistry;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
 
-import java.util.Iterator;
-
-public class GhostBusterEarlyReturnPatcher extends AbstractPatcher {
+public class GhostBusterEarlyReturnPatcher extends AbstractVisitorPatcher {
 	private final int accessPos;
 	private final int xyzStartPos;
 	private final int radius;
 	private final Object returnValue;
-	private boolean applied;
 
 	public GhostBusterEarlyReturnPatcher(String targetClassName, String targetMethodName, String targetMethodDesc, int accessPos, int xyzStartPos, int radius, Object returnValue) {
 		super("GhostBusterFix", targetClassName, targetMethodName, targetMethodDesc);
@@ -68,63 +60,149 @@ public class GhostBusterEarlyReturnPatcher extends AbstractPatcher {
 	}
 
 	@Override
-	public InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
-		if (applied) {
-			return null;
+	public boolean isCacheable() {
+		// Whether a World-typed access slot is accepted depends on its superclass chain.
+		return false;
+	}
+
+	private static boolean isBlockAccessType(Type type) {
+		return type != null && type.getSort() == Type.OBJECT
+				&& ("net/minecraft/world/IBlockAccess".equals(type.getInternalName()) || GhostBusterWrapperPatcher.isWorldClass(type.getInternalName()));
+	}
+
+	/**
+	 * Checks that the configured slots and return value fit the method, so that
+	 * a bad rule cannot produce unverifiable bytecode.
+	 *
+	 * @return A description of the mismatch, or null if the patch can be applied.
+	 */
+	private String checkMethod(int access, String desc) {
+		Type[] args = Type.getArgumentTypes(desc);
+		int slotCount = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+		for (Type arg : args) {
+			slotCount += arg.getSize();
 		}
 
-		InsnList list = new InsnList();
-		Label l = new Label();
-		LabelNode ln = new LabelNode(l);
-		list.add(new VarInsnNode(Opcodes.ALOAD, accessPos));
-		list.add(new VarInsnNode(Opcodes.ILOAD, xyzStartPos));
-		list.add(new VarInsnNode(Opcodes.ILOAD, xyzStartPos + 1));
-		list.add(new VarInsnNode(Opcodes.ILOAD, xyzStartPos + 2));
-		if (radius == 0) {
-			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-					"pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors", "isBlockLoaded",
-					"(Lnet/minecraft/world/IBlockAccess;III)Z", false));
-		} else {
-			switch (radius) {
-				case 1:
-					list.add(new InsnNode(Opcodes.ICONST_1));
-					break;
-				case 2:
-					list.add(new InsnNode(Opcodes.ICONST_2));
-					break;
-				case 3:
-					list.add(new InsnNode(Opcodes.ICONST_3));
-					break;
-				case 4:
-					list.add(new InsnNode(Opcodes.ICONST_4));
-					break;
-				case 5:
-					list.add(new InsnNode(Opcodes.ICONST_5));
-					break;
-				default:
-					throw new RuntimeException("Invalid ghost buster radius: " + radius);
-			}
-			list.add(new MethodInsnNode(Opcodes.INVOKESTATIC,
-					"pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors", "isAreaLoaded",
-					"(Lnet/minecraft/world/IBlockAccess;IIII)Z", false));
+		// Slot 0 of an instance method holds this, which is never an argument.
+		Type[] slots = new Type[slotCount];
+		int slot = (access & Opcodes.ACC_STATIC) != 0 ? 0 : 1;
+		for (Type arg : args) {
+			slots[slot] = arg;
+			slot += arg.getSize();
 		}
-		list.add(new JumpInsnNode(Opcodes.IFNE, ln));
-		if (returnValue != null) {
-			if (returnValue instanceof Boolean) {
-				list.add(new InsnNode(((boolean) returnValue) ? Opcodes.ICONST_1 : Opcodes.ICONST_0));
-				list.add(new InsnNode(Opcodes.IRETURN));
-			} else {
-				throw new RuntimeException("Invalid ghost buster return value: " + returnValue);
+
+		if (accessPos < 0 || accessPos >= slotCount || !isBlockAccessType(slots[accessPos])) {
+			return "slot " + accessPos + " is not an IBlockAccess or World argument";
+		}
+		for (int i = 0; i < 3; i++) {
+			int pos = xyzStartPos + i;
+			if (pos < 0 || pos >= slotCount || slots[pos] == null || slots[pos].getSort() != Type.INT) {
+				return "slot " + pos + " is not an int argument";
 			}
-		} else {
-			list.add(new InsnNode(Opcodes.RETURN));
 		}
-		list.add(ln);
-		list.add(new FrameNode(Opcodes.F_SAME, 0, null, 0, null));
 
-		successful = true;
-		applied = true;
-		printMessage("Added ghost buster patch (radius = " + radius + ") in " + targetMethodName);
-		return list;
+		Type returnType = Type.getReturnType(desc);
+		switch (returnType.getSort()) {
+			case Type.VOID:
+				return returnValue == null ? null : "the method returns void, but a return value of " + returnValue + " was given";
+			case Type.BOOLEAN:
+				return returnValue == null || returnValue instanceof Boolean ? null : "the method returns boolean, but a return value of " + returnValue + " was given";
+			case Type.BYTE:
+			case Type.CHAR:
+			case Type.SHORT:
+			case Type.INT:
+			case Type.LONG:
+				return returnValue == null || returnValue instanceof Long || returnValue instanceof Integer ? null
+						: "the method returns " + returnType.getClassName() + ", but a return value of " + returnValue + " was given";
+			case Type.FLOAT:
+			case Type.DOUBLE:
+				return returnValue == null || (returnValue instanceof Number) ? null
+						: "the method returns " + returnType.getClassName() + ", but a return value of " + returnValue + " was given";
+			default:
+				return returnValue == null ? null : "the method returns an object, so only null can be returned";
+		}
+	}
+
+	@Override
+	protected MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc) {
+		String problem = checkMethod(access, desc);
+		if (problem != null) {
+			BugfixModClassTransformer.instance.logger.warn("[" + getPatcherName() + "] Not patching " + name + desc + ": " + problem);
+			return mv;
+		}
+
+		return new MethodVisitor(Opcodes.ASM5, mv) {
+			@Override
+			public void visitCode() {
+				super.visitCode();
+				if (successful) {
+					return;
+				}
+
+				Label l = new Label();
+				super.visitVarInsn(Opcodes.ALOAD, accessPos);
+				super.visitVarInsn(Opcodes.ILOAD, xyzStartPos);
+				super.visitVarInsn(Opcodes.ILOAD, xyzStartPos + 1);
+				super.visitVarInsn(Opcodes.ILOAD, xyzStartPos + 2);
+				if (radius == 0) {
+					super.visitMethodInsn(Opcodes.INVOKESTATIC,
+							"pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors", "isBlockLoaded",
+							"(Lnet/minecraft/world/IBlockAccess;III)Z", false);
+				} else {
+					pushInt(radius);
+					super.visitMethodInsn(Opcodes.INVOKESTATIC,
+							"pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors", "isAreaLoaded",
+							"(Lnet/minecraft/world/IBlockAccess;IIII)Z", false);
+				}
+				super.visitJumpInsn(Opcodes.IFNE, l);
+				visitReturn(Type.getReturnType(desc));
+				super.visitLabel(l);
+				super.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+
+				successful = true;
+				printMessage("Added ghost buster patch (radius = " + radius + ") in " + targetMethodName);
+			}
+
+			private void pushInt(int value) {
+				if (value >= -1 && value <= 5) {
+					super.visitInsn(Opcodes.ICONST_0 + value);
+				} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+					super.visitIntInsn(Opcodes.BIPUSH, value);
+				} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+					super.visitIntInsn(Opcodes.SIPUSH, value);
+				} else {
+					super.visitLdcInsn(value);
+				}
+			}
+
+			private void visitReturn(Type type) {
+				switch (type.getSort()) {
+					case Type.VOID:
+						break;
+					case Type.BOOLEAN:
+						pushInt(returnValue != null && (Boolean) returnValue ? 1 : 0);
+						break;
+					case Type.BYTE:
+					case Type.CHAR:
+					case Type.SHORT:
+					case Type.INT:
+						pushInt(returnValue != null ? ((Number) returnValue).intValue() : 0);
+						break;
+					case Type.LONG:
+						super.visitLdcInsn(returnValue != null ? ((Number) returnValue).longValue() : 0L);
+						break;
+					case Type.FLOAT:
+						super.visitLdcInsn(returnValue != null ? ((Number) returnValue).floatValue() : 0.0f);
+						break;
+					case Type.DOUBLE:
+						super.visitLdcInsn(returnValue != null ? ((Number) returnValue).doubleValue() : 0.0);
+						break;
+					default:
+						super.visitInsn(Opcodes.ACONST_NULL);
+						break;
+				}
+				super.visitInsn(type.getOpcode(Opcodes.IRETURN));
+			}
+		};
 	}
 }
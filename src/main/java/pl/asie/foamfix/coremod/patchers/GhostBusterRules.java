@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod.patchers;
+
+import org.apache.logging.log4j.Logger;
+import pl.asie.foamfix.bugfixmod.coremod.MappingRegistry;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the operator-supplied ghostbuster rules from foamfix.cfg into patchers.
+ * One rule per line:
+ *
+ * <pre>
+ * earlyReturn &lt;class&gt; &lt;method&gt; [access=&lt;slot&gt;] [pos=&lt;slot&gt;] [radius=&lt;n&gt;] [return=&lt;value&gt;]
+ * wrap &lt;class&gt; &lt;method&gt;
+ * </pre>
+ *
+ * The method is either a plain (SRG or mod) name, or an MCP name qualified
+ * with the vanilla class declaring it, such as Block.updateTick; either may be
+ * followed by a descriptor to pick one overload.
+ */
+public final class GhostBusterRules {
+	/**
+	 * isAreaLoaded checks every chunk within the radius, so keep it small.
+	 */
+	public static final int MAX_RADIUS = 64;
+
+	private GhostBusterRules() {
+
+	}
+
+	public static List<AbstractPatcher> parse(List<String> rules, Logger logger) {
+		List<AbstractPatcher> patchers = new ArrayList<>();
+		for (String rule : rules) {
+			rule = rule.trim();
+			if (rule.isEmpty() || rule.startsWith("#")) {
+				continue;
+			}
+
+			try {
+				patchers.add(parse(rule));
+			} catch (IllegalArgumentException e) {
+				logger.warn("Ignoring ghostbuster rule \"" + rule + "\": " + e.getMessage());
+			}
+		}
+		return patchers;
+	}
+
+	private static int parseInt(String key, String value, int min, int max) {
+		int i;
+		try {
+			i = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: " + value);
+		}
+		if (i < min || i > max) {
+			throw new IllegalArgumentException(key + " must be between " + min + " and " + max);
+		}
+		return i;
+	}
+
+	private static Object parseReturnValue(String value) {
+		if ("true".equals(value) || "false".equals(value)) {
+			return Boolean.valueOf(value);
+		} else if ("null".equals(value)) {
+			return null;
+		}
+		try {
+			return value.indexOf('.') >= 0 ? (Object) Double.valueOf(value) : (Object) Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("unsupported return value: " + value);
+		}
+	}
+
+	private static AbstractPatcher parse(String rule) {
+		String[] tokens = rule.split("\\s+");
+		if (tokens.length < 3) {
+			throw new IllegalArgumentException("expected a rule type, class and method");
+		}
+
+		String className = tokens[1].replace('.', '/');
+		String method = tokens[2];
+		String methodDesc = null;
+		int descIndex = method.indexOf('(');
+		if (descIndex >= 0) {
+			methodDesc = method.substring(descIndex);
+		}
+
+		String methodName;
+		if (method.lastIndexOf('.', descIndex >= 0 ? descIndex : method.length()) >= 0) {
+			methodName = MappingRegistry.getMethodNameFor(method);
+			if (methodName == null) {
+				throw new IllegalArgumentException("unknown method " + method);
+			}
+		} else {
+			methodName = descIndex >= 0 ? method.substring(0, descIndex) : method;
+		}
+
+		if ("wrap".equals(tokens[0])) {
+			if (tokens.length > 3) {
+				throw new IllegalArgumentException("wrap rules take no options");
+			}
+			return new GhostBusterWrapperPatcher("GhostBusterRule", className, methodName, methodDesc);
+		} else if ("earlyReturn".equals(tokens[0])) {
+			int accessPos = 1, xyzStartPos = 2, radius = 0;
+			Object returnValue = null;
+			for (int i = 3; i < tokens.length; i++) {
+				int split = tokens[i].indexOf('=');
+				if (split < 0) {
+					throw new IllegalArgumentException("expected key=value, got " + tokens[i]);
+				}
+				String key = tokens[i].substring(0, split);
+				String value = tokens[i].substring(split + 1);
+				if ("access".equals(key)) {
+					accessPos = parseInt(key, value, 0, 255);
+				} else if ("pos".equals(key)) {
+					xyzStartPos = parseInt(key, value, 0, 253);
+				} else if ("radius".equals(key)) {
+					radius = parseInt(key, value, 0, MAX_RADIUS);
+				} else if ("return".equals(key)) {
+					returnValue = parseReturnValue(value);
+				} else {
+					throw new IllegalArgumentException("unknown option " + key);
+				}
+			}
+			return new GhostBusterEarlyReturnPatcher(className, methodName, methodDesc, accessPos, xyzStartPos, radius, returnValue);
+		} else {
+			throw new IllegalArgumentException("unknown rule type " + tokens[0]);
+		}
+	}
+}
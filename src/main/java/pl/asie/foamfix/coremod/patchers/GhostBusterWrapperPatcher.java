@@ -23,69 +23,144 @@
 
 package pl.asie.foamfix.coremod.patchers;
 
-import com.google.common.collect.Sets;
-import org.objectweb.asm.Label;
+import cpw.mods.fml.common.asm.transformers.deobf.FMLDeobfuscatingRemapper;
+import net.minecraft.launchwrapper.LaunchClassLoader;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.FrameNode;
-import org.objectweb.asm.tree.InsnList;
-import org.objectweb.asm.tree.InsnNode;
-import org.objectweb.asm.tree.JumpInsnNode;
-import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.MethodInsnNode;
-import org.objectweb.asm.tree.VarInsnNode;
 import pl.asie.foamfix.bugfixmod.coremod.MappingRegistry;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.ModificationPatcher;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class GhostBusterWrapperPatcher extends AbstractPatcher implements ModificationPatcher {
+public class GhostBusterWrapperPatcher extends AbstractVisitorPatcher {
+	private static final String BLOCK_ACCESS = "net/minecraft/world/IBlockAccess";
+	private static final String WORLD = "net/minecraft/world/World";
+	private static final Map<String, Boolean> worldClasses = new ConcurrentHashMap<>();
 	private static Map<String, String> operationsMap;
+	private static Set<String> operationNames;
+
+	static {
+		worldClasses.put(WORLD, true);
+		worldClasses.put("net/minecraft/world/WorldServer", true);
+		worldClasses.put("net/minecraft/world/WorldServerMulti", true);
+		worldClasses.put("net/minecraft/client/multiplayer/WorldClient", true);
+		worldClasses.put("java/lang/Object", false);
+	}
 
 	public GhostBusterWrapperPatcher(String name, String targetClassName, String targetMethodName, String targetMethodDesc) {
 		super(name, targetClassName, targetMethodName, targetMethodDesc);
+		getOperationsMap();
+	}
+
+	private static void addOperation(String name, String desc, String accessor, String accessorDesc) {
+		operationsMap.put(name + desc, accessor + ";" + accessorDesc);
+		operationNames.add(name);
+	}
 
+	private static synchronized Map<String, String> getOperationsMap() {
 		if (operationsMap == null) {
 			operationsMap = new HashMap<>();
-			operationsMap.put("net/minecraft/world/IBlockAccess." + MappingRegistry.getMethodNameFor("IBlockAccess.getBlock"), "getBlock;(Lnet/minecraft/world/IBlockAccess;III)Lnet/minecraft/block/Block;");
-			operationsMap.put("net/minecraft/world/World." + MappingRegistry.getMethodNameFor("IBlockAccess.getBlock"), "getBlock;(Lnet/minecraft/world/IBlockAccess;III)Lnet/minecraft/block/Block;");
-			operationsMap.put("net/minecraft/world/WorldServer." + MappingRegistry.getMethodNameFor("IBlockAccess.getBlock"), "getBlock;(Lnet/minecraft/world/IBlockAccess;III)Lnet/minecraft/block/Block;");
-			operationsMap.put("net/minecraft/world/IBlockAccess." + MappingRegistry.getMethodNameFor("IBlockAccess.isAirBlock"), "isAirBlock;(Lnet/minecraft/world/IBlockAccess;III)Z");
-			operationsMap.put("net/minecraft/world/World." + MappingRegistry.getMethodNameFor("IBlockAccess.isAirBlock"), "isAirBlock;(Lnet/minecraft/world/IBlockAccess;III)Z");
-			operationsMap.put("net/minecraft/world/WorldServer." + MappingRegistry.getMethodNameFor("IBlockAccess.isAirBlock"), "isAirBlock;(Lnet/minecraft/world/IBlockAccess;III)Z");
+			operationNames = new HashSet<>();
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.getBlock"), "(III)Lnet/minecraft/block/Block;",
+					"getBlock", "(Lnet/minecraft/world/IBlockAccess;III)Lnet/minecraft/block/Block;");
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.isAirBlock"), "(III)Z",
+					"isAirBlock", "(Lnet/minecraft/world/IBlockAccess;III)Z");
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.getBlockMetadata"), "(III)I",
+					"getBlockMetadata", "(Lnet/minecraft/world/IBlockAccess;III)I");
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.getTileEntity"), "(III)Lnet/minecraft/tileentity/TileEntity;",
+					"getTileEntity", "(Lnet/minecraft/world/IBlockAccess;III)Lnet/minecraft/tileentity/TileEntity;");
+			addOperation(MappingRegistry.getMethodNameFor("World.getBlockLightValue"), "(III)I",
+					"getBlockLightValue", "(Lnet/minecraft/world/World;III)I");
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.getLightBrightnessForSkyBlocks"), "(IIII)I",
+					"getLightBrightnessForSkyBlocks", "(Lnet/minecraft/world/IBlockAccess;IIII)I");
+			addOperation(MappingRegistry.getMethodNameFor("IBlockAccess.getBiomeGenForCoords"), "(II)Lnet/minecraft/world/biome/BiomeGenBase;",
+					"getBiomeGenForCoords", "(Lnet/minecraft/world/IBlockAccess;II)Lnet/minecraft/world/biome/BiomeGenBase;");
+			// added by Forge, so never obfuscated
+			addOperation("isSideSolid", "(IIILnet/minecraftforge/common/util/ForgeDirection;Z)Z",
+					"isSideSolid", "(Lnet/minecraft/world/IBlockAccess;IIILnet/minecraftforge/common/util/ForgeDirection;Z)Z");
+		}
+		return operationsMap;
+	}
+
+	private static String getSuperName(String className) {
+		ClassLoader loader = GhostBusterWrapperPatcher.class.getClassLoader();
+		if (!(loader instanceof LaunchClassLoader) || className.startsWith("java/")) {
+			return null;
+		}
+
+		try {
+			byte[] data = ((LaunchClassLoader) loader).getClassBytes(FMLDeobfuscatingRemapper.INSTANCE.unmap(className).replace('/', '.'));
+			if (data == null) {
+				return null;
+			}
+			String superName = new ClassReader(data).getSuperName();
+			return superName != null ? FMLDeobfuscatingRemapper.INSTANCE.map(superName) : null;
+		} catch (IOException e) {
+			return null;
 		}
 	}
 
+	/**
+	 * @param className The internal, deobfuscated name of a class.
+	 * @return Whether the class is World or extends it, reading the headers of
+	 * classes not seen before from the class loader.
+	 */
+	public static boolean isWorldClass(String className) {
+		Boolean result = worldClasses.get(className);
+		if (result == null) {
+			String superName = getSuperName(className);
+			result = superName != null && isWorldClass(superName);
+			worldClasses.put(className, result);
+		}
+		return result;
+	}
+
+	private static boolean isWrappedOwner(String owner) {
+		return BLOCK_ACCESS.equals(owner) || isWorldClass(owner);
+	}
+
+	/**
+	 * @param owner The internal name of the called method's owner.
+	 * @return Whether calls to this method are redirected to GhostBusterSafeAccessors.
+	 */
+	public static boolean isWrapped(String owner, String name) {
+		getOperationsMap();
+		return operationNames.contains(name) && isWrappedOwner(owner);
+	}
+
 	@Override
 	public String getPatcherName() {
 		return patcherName + "/" + targetMethodName;
 	}
 
 	@Override
-	public InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
-		return null;
+	public boolean isCacheable() {
+		// Which calls get redirected depends on the superclass chains of their owners.
+		return false;
 	}
 
 	@Override
-	public void modifyInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet, InsnList instructions) {
-		if (currentInstruction instanceof MethodInsnNode) {
-			String value = operationsMap.get(((MethodInsnNode) currentInstruction).owner + "." + ((MethodInsnNode) currentInstruction).name);
-			if (value != null) {
-				String[] valueSplit = value.split(";", 2);
-
-				printMessage("Applying wrapper to " + ((MethodInsnNode) currentInstruction).name + "!");
-				((MethodInsnNode) currentInstruction).owner = "pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors";
-				((MethodInsnNode) currentInstruction).name = valueSplit[0];
-				((MethodInsnNode) currentInstruction).desc = valueSplit[1];
-				((MethodInsnNode) currentInstruction).itf = false;
-				((MethodInsnNode) currentInstruction).setOpcode(Opcodes.INVOKESTATIC);
-				successful = true;
+	protected MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc) {
+		return new MethodVisitor(Opcodes.ASM5, mv) {
+			@Override
+			public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+				String value = opcode != Opcodes.INVOKESTATIC && opcode != Opcodes.INVOKESPECIAL ? operationsMap.get(name + desc) : null;
+				if (value != null && isWrappedOwner(owner)) {
+					String[] valueSplit = value.split(";", 2);
+
+					printMessage("Applying wrapper to " + name + "!");
+					super.visitMethodInsn(Opcodes.INVOKESTATIC, "pl/asie/foamfix/ghostbuster/GhostBusterSafeAccessors", valueSplit[0], valueSplit[1], false);
+					successful = true;
+				} else {
+					super.visitMethodInsn(opcode, owner, name, desc, itf);
+				}
 			}
-		}
+		};
 	}
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod.patchers;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.ModificationPatcher;
+
+import java.util.Iterator;
+
+/**
+ * Replaces "new ASMModParser(jar.getInputStream(entry))" in JarDiscoverer.discover
+ * with a call to ParallelModParser.getParser(jar, entry), and releases the
+ * parser's per-jar state before discover returns.
+ */
+public class JarDiscovererParallelParserPatcher extends AbstractPatcher implements ModificationPatcher {
+	private static final String PARSER = "cpw/mods/fml/common/discovery/asm/ASMModParser";
+
+	public JarDiscovererParallelParserPatcher(String name, String targetClassName, String targetMethodName, String targetMethodDesc) {
+		super(name, targetClassName, targetMethodName, targetMethodDesc);
+	}
+
+	@Override
+	public InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
+		return null;
+	}
+
+	@Override
+	public void modifyInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet, InsnList instructions) {
+		if (currentInstruction.getOpcode() == Opcodes.ARETURN) {
+			instructions.insertBefore(currentInstruction, new MethodInsnNode(
+					Opcodes.INVOKESTATIC,
+					"pl/asie/foamfix/ParallelModParser",
+					"release",
+					"()V",
+					false
+			));
+		} else if (currentInstruction.getOpcode() == Opcodes.INVOKESPECIAL
+			&& ((MethodInsnNode) currentInstruction).owner.equals(PARSER)
+			&& ((MethodInsnNode) currentInstruction).name.equals("<init>")
+			&& ((MethodInsnNode) currentInstruction).desc.equals("(Ljava/io/InputStream;)V")
+		) {
+			// NEW ASMModParser; DUP; ALOAD jar; ALOAD entry; INVOKEVIRTUAL getInputStream; INVOKESPECIAL <init>
+			AbstractInsnNode getInputStream = currentInstruction.getPrevious();
+			AbstractInsnNode loadEntry = getInputStream.getPrevious();
+			AbstractInsnNode loadJar = loadEntry != null ? loadEntry.getPrevious() : null;
+			AbstractInsnNode dup = loadJar != null ? loadJar.getPrevious() : null;
+			AbstractInsnNode newParser = dup != null ? dup.getPrevious() : null;
+			if (newParser != null
+				&& getInputStream.getOpcode() == Opcodes.INVOKEVIRTUAL
+				&& ((MethodInsnNode) getInputStream).owner.equals("java/util/jar/JarFile")
+				&& ((MethodInsnNode) getInputStream).name.equals("getInputStream")
+				&& loadEntry.getOpcode() == Opcodes.ALOAD
+				&& loadJar.getOpcode() == Opcodes.ALOAD
+				&& dup.getOpcode() == Opcodes.DUP
+				&& newParser.getOpcode() == Opcodes.NEW
+				&& ((TypeInsnNode) newParser).desc.equals(PARSER)
+			) {
+				instructions.remove(newParser);
+				instructions.remove(dup);
+				instructions.set(getInputStream, new MethodInsnNode(
+						Opcodes.INVOKESTATIC,
+						"pl/asie/foamfix/ParallelModParser",
+						"getParser",
+						"(Ljava/util/zip/ZipFile;Ljava/util/zip/ZipEntry;)L" + PARSER + ";",
+						false
+				));
+				instructions.remove(currentInstruction);
+				successful = true;
+			}
+		}
+	}
+}
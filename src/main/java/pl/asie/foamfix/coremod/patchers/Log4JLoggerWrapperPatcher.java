@@ -23,56 +23,43 @@
 
 package pl.asie.foamfix.coremod.patchers;
 
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.AbstractInsnNode;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.InsnList;
-import org.objectweb.asm.tree.MethodInsnNode;
-import org.objectweb.asm.tree.MethodNode;
-import pl.asie.foamfix.bugfixmod.coremod.MappingRegistry;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractPatcher;
-import pl.asie.foamfix.bugfixmod.coremod.patchers.ModificationPatcher;
+import pl.asie.foamfix.bugfixmod.coremod.patchers.AbstractVisitorPatcher;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.ListIterator;
-import java.util.Map;
-
-public class Log4JLoggerWrapperPatcher extends AbstractPatcher  {
+public class Log4JLoggerWrapperPatcher extends AbstractVisitorPatcher {
 	public Log4JLoggerWrapperPatcher(String name) {
-		super(name, "", "", "");
+		super(name, "", null, null);
 	}
 
 	@Override
-	public String getPatcherName() {
-		return patcherName;
+	public String[] getRequiredConstants() {
+		return new String[] { "org/apache/logging/log4j/LogManager" };
 	}
 
 	@Override
-	public InsnList buildNewInsns(AbstractInsnNode currentInstruction, Iterator<AbstractInsnNode> instructionSet) {
-		return null;
+	public String getPatcherName() {
+		return patcherName;
 	}
 
 	@Override
-	protected void patchClassNode(ClassNode classNode) {
-		for (MethodNode method : classNode.methods) {
-			AbstractInsnNode currentInstruction;
-			ListIterator<AbstractInsnNode> instructionSet = method.instructions.iterator();
-			while (instructionSet.hasNext()) {
-				currentInstruction = instructionSet.next();
-				if (currentInstruction.getOpcode() == Opcodes.INVOKESTATIC
-					&& ((MethodInsnNode) currentInstruction).owner.equals("org/apache/logging/log4j/LogManager")
-					&& ((MethodInsnNode) currentInstruction).name.equals("getLogger")
-					&& ((MethodInsnNode) currentInstruction).desc.endsWith(")Lorg/apache/logging/log4j/Logger;")
+	protected MethodVisitor createMethodVisitor(String className, MethodVisitor mv, int access, String name, String desc) {
+		return new MethodVisitor(Opcodes.ASM5, mv) {
+			@Override
+			public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+				super.visitMethodInsn(opcode, owner, name, desc, itf);
+				if (opcode == Opcodes.INVOKESTATIC
+					&& owner.equals("org/apache/logging/log4j/LogManager")
+					&& name.equals("getLogger")
+					&& desc.endsWith(")Lorg/apache/logging/log4j/Logger;")
 				) {
-					printMessage("Applying Log4j exploit mitigation to " + classNode.name + "/" + ((MethodInsnNode) currentInstruction).name + "!");
-					MethodInsnNode methodInsnNode = new MethodInsnNode(Opcodes.INVOKESTATIC,
+					printMessage("Applying Log4j exploit mitigation to " + className + "/" + name + "!");
+					super.visitMethodInsn(Opcodes.INVOKESTATIC,
 							"pl/asie/foamfix/HackyMessageFactoryWrapper", "fixLogger", "(Lorg/apache/logging/log4j/Logger;)Lorg/apache/logging/log4j/Logger;", false);
-					instructionSet.add(methodInsnNode);
 
 					successful = true;
 				}
 			}
-		}
+		};
 	}
 }
@@ -24,21 +24,30 @@
 package pl.asie.foamfix.coremod.util;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.collect.Sets;
 import net.minecraft.launchwrapper.LaunchClassLoader;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.commons.RemappingClassAdapter;
+import org.objectweb.asm.commons.RemappingMethodAdapter;
 import org.objectweb.asm.tree.*;
 import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+import pl.asie.foamfix.coremod.TransformerProfiler;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 
 public final class ClassSplicingUtil {
+    private static final Map<String, ClassNode> spliceNodeCache = new HashMap<>();
+    private static boolean spliceNodeCacheReleased;
+
     private ClassSplicingUtil() {
 
     }
@@ -48,78 +57,140 @@ public final class ClassSplicingUtil {
         if (loader instanceof LaunchClassLoader) {
             return ((LaunchClassLoader) loader).getClassBytes(className);
         } else {
-            throw new RuntimeException("Incompatible class loader for FoamFixTransformer.getClassBytes: " + loader.getClass().getName());
+            // Outside of LaunchWrapper, e.g. in benchmarks.
+            try (InputStream stream = loader.getResourceAsStream(className.replace('.', '/') + ".class")) {
+                if (stream == null) {
+                    throw new RuntimeException("Could not find class " + className + " in " + loader.getClass().getName());
+                }
+                return ByteStreams.toByteArray(stream);
+            }
+        }
+    }
+
+    /**
+     * Returns the given splice source class, as read from its class file. The
+     * parsed class is kept until {@link #releaseCache()} is called and shared
+     * by every target it is spliced into, each copy being remapped on its own;
+     * callers must not modify the returned node.
+     */
+    private static ClassNode getSpliceNode(final String className) throws IOException {
+        final TransformerProfiler profiler = BugfixModClassTransformer.instance.profiler;
+        synchronized (spliceNodeCache) {
+            ClassNode node = spliceNodeCache.get(className);
+            if (profiler != null) {
+                profiler.splice.recordCacheLookup(node != null);
+            }
+            if (node == null) {
+                node = readSpliceNode(getClassBytes(className), className);
+                if (!spliceNodeCacheReleased) {
+                    spliceNodeCache.put(className, node);
+                }
+            }
+            return node;
+        }
+    }
+
+    private static ClassNode readSpliceNode(final byte[] dataSplice, final String className) {
+        if (dataSplice == null) {
+            throw new RuntimeException("Class " + className + " not found! This is a FoamFix bug!");
+        }
+
+        // Expanded frames are needed by the RemappingMethodAdapter each method is later copied through.
+        ClassNode nodeSplice = new ClassNode();
+        new ClassReader(dataSplice).accept(nodeSplice, ClassReader.EXPAND_FRAMES);
+        return nodeSplice;
+    }
+
+    private static Remapper getRemapper(final String className, final String targetClassName2) {
+        final String className2 = className.replace('.', '/');
+        return new Remapper() {
+            public String map(final String name) {
+                return className2.equals(name) ? targetClassName2 : name;
+            }
+        };
+    }
+
+    /**
+     * Drops the parsed splice source classes. Called once loading is complete, as
+     * most splice targets have been loaded by then; later splices parse their
+     * source class again.
+     */
+    public static void releaseCache() {
+        synchronized (spliceNodeCache) {
+            spliceNodeCache.clear();
+            spliceNodeCacheReleased = true;
         }
     }
 
     public static boolean spliceClasses(final ClassNode data, final String className, final boolean addMethods, final String... methods) {
+        final TransformerProfiler profiler = BugfixModClassTransformer.instance.profiler;
+        final long start = profiler != null ? System.nanoTime() : 0;
         try {
-            final byte[] dataSplice = getClassBytes(className);
-            return spliceClasses(data, dataSplice, className, addMethods, methods);
+            final boolean result = spliceClasses(data, getSpliceNode(className), className, addMethods, methods);
+            if (profiler != null) {
+                profiler.splice.record(System.nanoTime() - start, 0, 0, result);
+            }
+            return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public static boolean spliceClasses(final ClassNode nodeData, final byte[] dataSplice, final String className, final boolean addMethods, final String... methods) {
+        return spliceClasses(nodeData, readSpliceNode(dataSplice, className), className, addMethods, methods);
+    }
+
+    private static boolean spliceClasses(final ClassNode nodeData, final ClassNode nodeSplice, final String className, final boolean addMethods, final String... methods) {
         // BugfixModClassTransformer.instance.logger.info("Splicing from " + className + " to " + targetClassName)
-        if (dataSplice == null) {
-            throw new RuntimeException("Class " + className + " not found! This is a FoamFix bug!");
-        }
         boolean addedGlobal = false;
 
         final Set<String> methodSet = Sets.newHashSet(methods);
         final List<String> methodList = Lists.newArrayList(methods);
 
-        final ClassReader readerSplice = new ClassReader(dataSplice);
-        final String className2 = className.replace('.', '/');
         final String targetClassName2 = nodeData.name;
         final String targetClassName = targetClassName2.replace('/', '.');
-        final Remapper remapper = new Remapper() {
-            public String map(final String name) {
-                return className2.equals(name) ? targetClassName2 : name;
-            }
-        };
+        final Remapper remapper = getRemapper(className, targetClassName2);
 
-        ClassNode nodeSplice = new ClassNode();
-        readerSplice.accept(new RemappingClassAdapter(nodeSplice, remapper), ClassReader.EXPAND_FRAMES);
         for (String s : nodeSplice.interfaces) {
+            s = remapper.mapType(s);
             if (s.contains("IFoamFix")) {
                 nodeData.interfaces.add(s);
                 BugfixModClassTransformer.instance.logger.info("Added INTERFACE: " + s);
             }
         }
 
+        final Map<String, Integer> methodIndex = new HashMap<>();
+        for (int j = 0; j < nodeData.methods.size(); j++) {
+            methodIndex.put(nodeData.methods.get(j).name + nodeData.methods.get(j).desc, j);
+        }
+
         for (int i = 0; i < nodeSplice.methods.size(); i++) {
             if (methodSet.contains(nodeSplice.methods.get(i).name)) {
-                MethodNode mn = nodeSplice.methods.get(i);
+                MethodNode mn = copyMethod(nodeSplice.methods.get(i), remapper);
                 boolean added = false;
 
-                for (int j = 0; j < nodeData.methods.size(); j++) {
-                    if (nodeData.methods.get(j).name.equals(mn.name)
-                            && nodeData.methods.get(j).desc.equals(mn.desc)) {
-                        MethodNode oldMn = nodeData.methods.get(j);
-                        BugfixModClassTransformer.instance.logger.info("Spliced in METHOD: " + targetClassName + "." + mn.name);
-                        nodeData.methods.set(j, mn);
-                        if (nodeData.superName != null && nodeData.name.equals(nodeSplice.superName)) {
-                            ListIterator<AbstractInsnNode> nodeListIterator = mn.instructions.iterator();
-                            while (nodeListIterator.hasNext()) {
-                                AbstractInsnNode node = nodeListIterator.next();
-                                if (node instanceof MethodInsnNode
-                                        && node.getOpcode() == Opcodes.INVOKESPECIAL) {
-                                    MethodInsnNode methodNode = (MethodInsnNode) node;
-                                    if (targetClassName2.equals(methodNode.owner)) {
-                                        methodNode.owner = nodeData.superName;
-                                    }
+                Integer j = methodIndex.get(mn.name + mn.desc);
+                if (j != null) {
+                    MethodNode oldMn = nodeData.methods.get(j);
+                    BugfixModClassTransformer.instance.logger.info("Spliced in METHOD: " + targetClassName + "." + mn.name);
+                    nodeData.methods.set(j, mn);
+                    if (nodeData.superName != null && nodeData.name.equals(nodeSplice.superName)) {
+                        ListIterator<AbstractInsnNode> nodeListIterator = mn.instructions.iterator();
+                        while (nodeListIterator.hasNext()) {
+                            AbstractInsnNode node = nodeListIterator.next();
+                            if (node instanceof MethodInsnNode
+                                    && node.getOpcode() == Opcodes.INVOKESPECIAL) {
+                                MethodInsnNode methodNode = (MethodInsnNode) node;
+                                if (targetClassName2.equals(methodNode.owner)) {
+                                    methodNode.owner = nodeData.superName;
                                 }
                             }
                         }
-
-                        oldMn.name = methodList.get((methodList.indexOf(oldMn.name)) & (~1)) + "_foamfix_old";
-                        nodeData.methods.add(oldMn);
-                        added = true;
-                        break;
                     }
+
+                    oldMn.name = methodList.get((methodList.indexOf(oldMn.name)) & (~1)) + "_foamfix_old";
+                    nodeData.methods.add(oldMn);
+                    added = true;
                 }
 
                 if (!added && addMethods) {
@@ -133,7 +204,7 @@ public final class ClassSplicingUtil {
 
         for (int i = 0; i < nodeSplice.fields.size(); i++) {
             if (methodSet.contains(nodeSplice.fields.get(i).name)) {
-                FieldNode mn = nodeSplice.fields.get(i);
+                FieldNode mn = copyField(nodeSplice.fields.get(i), remapper);
                 boolean added = false;
 
                 for (int j = 0; j < nodeData.fields.size(); j++) {
@@ -158,6 +229,27 @@ public final class ClassSplicingUtil {
         return addedGlobal;
     }
 
+    private static MethodNode copyMethod(final MethodNode mn, final Remapper remapper) {
+        final String desc = remapper.mapMethodDesc(mn.desc);
+        final MethodNode copy = new MethodNode(Opcodes.ASM5, mn.access, mn.name, desc, remapper.mapSignature(mn.signature, false),
+                remapper.mapTypes(mn.exceptions.toArray(new String[0])));
+        synchronized (mn) {
+            // Make sure every copy gets its own labels.
+            mn.instructions.resetLabels();
+            mn.accept(new RemappingMethodAdapter(mn.access, desc, copy, remapper));
+        }
+        return copy;
+    }
+
+    private static FieldNode copyField(final FieldNode fn, final Remapper remapper) {
+        final FieldNode copy = new FieldNode(Opcodes.ASM5, fn.access, fn.name, remapper.mapDesc(fn.desc),
+                remapper.mapSignature(fn.signature, true), remapper.mapValue(fn.value));
+        copy.visibleAnnotations = fn.visibleAnnotations;
+        copy.invisibleAnnotations = fn.invisibleAnnotations;
+        copy.attrs = fn.attrs;
+        return copy;
+    }
+
     public static ClassNode replaceClasses(final ClassNode data, final String className) {
         try {
             final byte[] dataSplice = getClassBytes(className);
@@ -173,18 +265,8 @@ public final class ClassSplicingUtil {
             throw new RuntimeException("Class " + className + " not found! This is a FoamFix bug!");
         }
 
-        final ClassReader readerSplice = new ClassReader(dataSplice);
-        final String className2 = className.replace('.', '/');
-        final String targetClassName2 = nodeData.name;
-        final String targetClassName = targetClassName2.replace('/', '.');
-        final Remapper remapper = new Remapper() {
-            public String map(final String name) {
-                return className2.equals(name) ? targetClassName2 : name;
-            }
-        };
-
-        ClassNode nodeSplice = new ClassNode();
-        readerSplice.accept(new RemappingClassAdapter(nodeSplice, remapper), ClassReader.EXPAND_FRAMES);
-        return nodeSplice;
+        ClassNode nodeReplace = new ClassNode();
+        new ClassReader(dataSplice).accept(new RemappingClassAdapter(nodeReplace, getRemapper(className, nodeData.name)), ClassReader.EXPAND_FRAMES);
+        return nodeReplace;
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.coremod.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scans the constant pool of a raw class file without building any ASM
+ * structures, to cheaply rule out classes a patcher cannot apply to.
+ */
+public final class ConstantPoolScanner {
+    private ConstantPoolScanner() {
+
+    }
+
+    public static byte[][] encode(String... constants) {
+        if (constants.length > 32) {
+            throw new IllegalArgumentException("Too many constants: " + constants.length);
+        }
+
+        byte[][] result = new byte[constants.length][];
+        for (int i = 0; i < constants.length; i++) {
+            result[i] = constants[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether every given string is present as a CONSTANT_Utf8 entry.
+     * Malformed class files are reported as matching, leaving them to ASM.
+     */
+    public static boolean containsAll(byte[] bytes, byte[][] constants) {
+        if (constants.length == 0) {
+            return true;
+        }
+
+        int allMask = constants.length == 32 ? -1 : (1 << constants.length) - 1;
+        int foundMask = 0;
+
+        try {
+            if (readInt(bytes, 0) != 0xCAFEBABE) {
+                return true;
+            }
+
+            int count = readUnsignedShort(bytes, 8);
+            int offset = 10;
+            for (int i = 1; i < count; i++) {
+                switch (bytes[offset]) {
+                    case 1: // Utf8
+                        int length = readUnsignedShort(bytes, offset + 1);
+                        for (int j = 0; j < constants.length; j++) {
+                            if ((foundMask & (1 << j)) == 0 && matches(bytes, offset + 3, length, constants[j])) {
+                                foundMask |= (1 << j);
+                                if (foundMask == allMask) {
+                                    return true;
+                                }
+                            }
+                        }
+                        offset += 3 + length;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    default:
+                        return true;
+                }
+            }
+
+            return false;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    private static boolean matches(byte[] bytes, int offset, int length, byte[] constant) {
+        if (length != constant.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != constant[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -25,7 +25,15 @@ package pl.asie.foamfix.ghostbuster;
 
 import net.minecraft.command.CommandBase;
 import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.ChatComponentText;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class CommandGhostBuster extends CommandBase {
 	@Override
@@ -35,7 +43,7 @@ public class CommandGhostBuster extends CommandBase {
 
 	@Override
 	public String getCommandUsage(ICommandSender sender) {
-		return "/ghostbuster [on|off]";
+		return "/ghostbuster [on|off|top [count]|reset|dump <file>|learn [minutes|stop]]";
 	}
 
 	@Override
@@ -49,9 +57,66 @@ public class CommandGhostBuster extends CommandBase {
 				GhostBusterLogger.debugChunkProviding = false;
 				sender.addChatMessage(new ChatComponentText("Ghost chunkload logging OFF!"));
 				return;
+			} else if ("top".equals(args[0])) {
+				int count = args.length >= 2 ? parseIntBounded(sender, args[1], 1, 100) : 10;
+				int sampleRate = BugfixModClassTransformer.instance.settings.gbDebuggerSampleRate;
+				List<GhostBusterCallSites.Site> sites = GhostBusterCallSites.getTop(count);
+				sender.addChatMessage(new ChatComponentText(GhostBusterCallSites.getSampledCount() + " ghost chunkloads sampled (1 in " + sampleRate + ") from "
+						+ GhostBusterCallSites.getSiteCount() + " call sites:"));
+				for (int i = 0; i < sites.size(); i++) {
+					GhostBusterCallSites.Site site = sites.get(i);
+					sender.addChatMessage(new ChatComponentText((i + 1) + ". " + site.getCount() + "x " + site.getKey()));
+				}
+				return;
+			} else if ("reset".equals(args[0])) {
+				GhostBusterCallSites.reset();
+				sender.addChatMessage(new ChatComponentText("Ghost chunkload call sites cleared."));
+				return;
+			} else if ("learn".equals(args[0])) {
+				if (args.length >= 2 && "stop".equals(args[1])) {
+					int count = GhostBusterLearner.stop();
+					if (count < 0) {
+						sender.addChatMessage(new ChatComponentText("Ghost chunkload learning is not running."));
+					} else {
+						sender.addChatMessage(new ChatComponentText("Ghost chunkload learning stopped, " + count + " new rule(s) written to "
+								+ BugfixModClassTransformer.instance.settings.gbRulesFile + "; restart to apply them."));
+					}
+				} else if (args.length >= 2) {
+					int minutes = parseIntBounded(sender, args[1], 1, 10080);
+					GhostBusterLearner.start(minutes);
+					sender.addChatMessage(new ChatComponentText("Learning from ghost chunkloads for " + minutes + " minute(s)."));
+				} else if (GhostBusterLearner.isLearning()) {
+					sender.addChatMessage(new ChatComponentText("Ghost chunkload learning: " + TimeUnit.MILLISECONDS.toSeconds(GhostBusterLearner.getRemainingMillis()) + " second(s) left."));
+				} else {
+					throw new WrongUsageException(getCommandUsage(sender));
+				}
+				return;
+			} else if ("dump".equals(args[0])) {
+				if (args.length < 2) {
+					throw new WrongUsageException(getCommandUsage(sender));
+				}
+				// Only plain file names are accepted; dumps always go to the logs directory.
+				String name = args[1];
+				if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals(".") || name.equals("..")) {
+					sender.addChatMessage(new ChatComponentText("Dump file names may not contain path separators."));
+					return;
+				}
+				File file = new File(MinecraftServer.getServer().getFile("logs"), name);
+				try {
+					GhostBusterCallSites.dump(file, BugfixModClassTransformer.instance.settings.gbDebuggerSampleRate);
+					sender.addChatMessage(new ChatComponentText("Ghost chunkload call sites written to " + file.getAbsolutePath()));
+				} catch (IOException e) {
+					sender.addChatMessage(new ChatComponentText("Could not write " + file.getAbsolutePath() + ": " + e.getMessage()));
+				}
+				return;
 			}
 		}
 
 		sender.addChatMessage(new ChatComponentText("Ghost chunkload logging status: " + (GhostBusterLogger.debugChunkProviding ? "ON" : "OFF")));
 	}
+
+	@Override
+	public List addTabCompletionOptions(ICommandSender sender, String[] args) {
+		return args.length == 1 ? getListOfStringsMatchingLastWord(args, "on", "off", "top", "reset", "dump", "learn") : null;
+	}
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.ghostbuster;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory histogram of ghost chunkload call sites, keyed by the topmost
+ * frame which does not belong to Minecraft, Forge or the JDK. Backs the
+ * /ghostbuster top, reset and dump subcommands.
+ */
+public final class GhostBusterCallSites {
+	private static final int MAX_SITES = 4096;
+	private static final String OTHER_KEY = "<other call sites>";
+	private static final String[] VANILLA_PREFIXES = {
+			"net.minecraft.", "net.minecraftforge.", "cpw.mods.fml.",
+			"java.", "javax.", "sun.", "pl.asie.foamfix.ghostbuster."
+	};
+
+	public static final class Site {
+		private final String key;
+		private final StackTraceElement[] stack;
+		private final AtomicLong count = new AtomicLong();
+
+		private Site(String key, StackTraceElement[] stack) {
+			this.key = key;
+			this.stack = stack;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Site> sites = new ConcurrentHashMap<>();
+	private static final AtomicLong sampled = new AtomicLong();
+
+	private GhostBusterCallSites() {
+
+	}
+
+	private static boolean isVanilla(String className) {
+		for (String prefix : VANILLA_PREFIXES) {
+			if (className.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records one sampled ghost chunkload.
+	 *
+	 * @param stack The stack trace, from which frames [from, to) are considered.
+	 */
+	static void record(StackTraceElement[] stack, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+
+		StackTraceElement top = stack[from];
+		for (int i = from; i < to; i++) {
+			if (!isVanilla(stack[i].getClassName())) {
+				top = stack[i];
+				break;
+			}
+		}
+
+		sampled.incrementAndGet();
+		String key = top.toString();
+		Site site = sites.get(key);
+		if (site == null) {
+			boolean overflow = sites.size() >= MAX_SITES;
+			if (overflow) {
+				key = OTHER_KEY;
+				site = sites.get(key);
+			}
+			if (site == null) {
+				Site newSite = new Site(key, overflow ? new StackTraceElement[0] : Arrays.copyOfRange(stack, from, to));
+				site = sites.putIfAbsent(key, newSite);
+				if (site == null) {
+					site = newSite;
+				}
+			}
+		}
+		site.count.incrementAndGet();
+	}
+
+	public static long getSampledCount() {
+		return sampled.get();
+	}
+
+	public static int getSiteCount() {
+		return sites.size();
+	}
+
+	/**
+	 * @return Up to {@code limit} call sites, ordered by descending sample count.
+	 */
+	public static List<Site> getTop(int limit) {
+		List<Site> list = new ArrayList<>(sites.values());
+		Collections.sort(list, new Comparator<Site>() {
+			@Override
+			public int compare(Site a, Site b) {
+				return Long.compare(b.getCount(), a.getCount());
+			}
+		});
+		return list.size() > limit ? list.subList(0, limit) : list;
+	}
+
+	public static void reset() {
+		sites.clear();
+		sampled.set(0);
+	}
+
+	public static void dump(File file, int sampleRate) throws IOException {
+		List<Site> list = getTop(Integer.MAX_VALUE);
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+			writer.write("# " + sampled.get() + " sampled ghost chunkloads (1 in " + sampleRate + "), " + list.size() + " call sites");
+			writer.newLine();
+			for (Site site : list) {
+				writer.newLine();
+				writer.write(site.getCount() + "\t" + site.key);
+				writer.newLine();
+				for (StackTraceElement ste : site.stack) {
+					writer.write("\t- " + ste);
+					writer.newLine();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.ghostbuster;
+
+import cpw.mods.fml.common.FMLCommonHandler;
+import cpw.mods.fml.common.eventhandler.SubscribeEvent;
+import cpw.mods.fml.common.gameevent.TickEvent;
+import pl.asie.foamfix.FoamFixMod;
+import pl.asie.foamfix.bugfixmod.BugfixModSettings;
+import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
+import pl.asie.foamfix.bugfixmod.coremod.MappingRegistry;
+import pl.asie.foamfix.coremod.patchers.GhostBusterWrapperPatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches ghost chunkloads for a while, attributes each to the block or tile
+ * entity update method which caused it, and writes ghostbuster rules for those
+ * methods to the rules file read on the next start.
+ */
+public final class GhostBusterLearner {
+	private static final class Target {
+		private final String name;
+		private final String runtimeName;
+		private final String baseClass;
+		private final boolean hasBlockArgs;
+
+		private Target(String name, String baseClass, boolean hasBlockArgs) {
+			this.name = name;
+			this.runtimeName = MappingRegistry.getMethodNameFor(name);
+			this.baseClass = baseClass;
+			this.hasBlockArgs = hasBlockArgs;
+		}
+	}
+
+	private static final class Method {
+		private final String className;
+		private final Target target;
+		private final String example;
+		private final AtomicLong count = new AtomicLong();
+		private volatile boolean onlyWrapped = true;
+
+		private Method(String className, Target target, String example) {
+			this.className = className;
+			this.target = target;
+			this.example = example;
+		}
+
+		private String getRule(int radius) {
+			if (onlyWrapped) {
+				return "wrap " + className + " " + target.name;
+			} else if (target.hasBlockArgs) {
+				return "earlyReturn " + className + " " + target.name + " radius=" + radius;
+			} else {
+				return null;
+			}
+		}
+	}
+
+	private static final GhostBusterLearner INSTANCE = new GhostBusterLearner();
+	private static final Map<String, Method> methods = new ConcurrentHashMap<>();
+	private static final AtomicLong unattributed = new AtomicLong();
+	private static Target[] targets;
+	private static boolean registered;
+	private static volatile long deadline;
+	private static long startTime;
+
+	private GhostBusterLearner() {
+
+	}
+
+	public static boolean isLearning() {
+		return deadline != 0;
+	}
+
+	public static long getRemainingMillis() {
+		long d = deadline;
+		return d == 0 ? 0 : Math.max(0, d - System.currentTimeMillis());
+	}
+
+	public static synchronized void start(int minutes) {
+		if (targets == null) {
+			targets = new Target[] {
+					new Target("Block.updateTick", "net.minecraft.block.Block", true),
+					new Target("Block.onNeighborBlockChange", "net.minecraft.block.Block", true),
+					new Target("TileEntity.updateEntity", "net.minecraft.tileentity.TileEntity", false)
+			};
+		}
+		if (!registered) {
+			FMLCommonHandler.instance().bus().register(INSTANCE);
+			registered = true;
+		}
+
+		methods.clear();
+		unattributed.set(0);
+		startTime = System.currentTimeMillis();
+		deadline = startTime + TimeUnit.MINUTES.toMillis(minutes);
+		FoamFixMod.logger.info("GhostBuster: learning from ghost chunkloads for " + minutes + " minute(s)");
+	}
+
+	/**
+	 * Stops learning and writes the proposed rules.
+	 *
+	 * @return The number of new rules written, or -1 if not learning.
+	 */
+	public static synchronized int stop() {
+		if (deadline == 0) {
+			return -1;
+		}
+		deadline = 0;
+
+		BugfixModSettings settings = BugfixModClassTransformer.instance.settings;
+		try {
+			int count = writeRules(settings.gbRulesFile, settings.gbRules, settings.gbLearnRadius);
+			FoamFixMod.logger.info("GhostBuster: learning finished, wrote " + count + " new rule(s) to " + settings.gbRulesFile
+					+ "; " + unattributed.get() + " ghost chunkloads could not be attributed");
+			return count;
+		} catch (IOException e) {
+			FoamFixMod.logger.error("GhostBuster: could not write " + settings.gbRulesFile, e);
+			return 0;
+		}
+	}
+
+	static void observe(StackTraceElement[] stack, int from, int to) {
+		for (int i = from; i < to; i++) {
+			StackTraceElement frame = stack[i];
+			for (Target target : targets) {
+				if (frame.getMethodName().equals(target.runtimeName) && !frame.getClassName().equals(target.baseClass)) {
+					StackTraceElement callee = stack[i - 1];
+					String key = frame.getClassName() + " " + target.name;
+					Method method = methods.get(key);
+					if (method == null) {
+						Method newMethod = new Method(frame.getClassName(), target, callee.toString());
+						method = methods.putIfAbsent(key, newMethod);
+						if (method == null) {
+							method = newMethod;
+						}
+					}
+
+					method.count.incrementAndGet();
+					if (method.onlyWrapped && !GhostBusterWrapperPatcher.isWrapped(callee.getClassName().replace('.', '/'), callee.getMethodName())) {
+						method.onlyWrapped = false;
+					}
+					return;
+				}
+			}
+		}
+		unattributed.incrementAndGet();
+	}
+
+	/**
+	 * @return The rule's kind, class and method, separated by single spaces, so
+	 * that two rules patching the same method compare equal.
+	 */
+	private static String getRuleKey(String rule) {
+		String[] parts = rule.trim().split("\\s+");
+		return parts.length >= 3 ? parts[0] + " " + parts[1] + " " + parts[2] : String.join(" ", parts);
+	}
+
+	private static int writeRules(File file, List<String> configuredRules, int radius) throws IOException {
+		List<String> lines = file.exists() ? new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) : new ArrayList<>();
+		// The configured rules already include the file's; read the file again in case it changed since.
+		Set<String> existing = new HashSet<>();
+		for (String line : configuredRules) {
+			existing.add(getRuleKey(line));
+		}
+		for (String line : lines) {
+			existing.add(getRuleKey(line));
+		}
+
+		List<Method> list = new ArrayList<>(methods.values());
+		Collections.sort(list, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return Long.compare(b.count.get(), a.count.get());
+			}
+		});
+
+		int count = 0;
+		lines.add("");
+		lines.add("# Learned by /ghostbuster learn on " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(startTime))
+				+ " over " + TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - startTime) + " minute(s)");
+		for (Method method : list) {
+			String rule = method.getRule(radius);
+			if (rule != null && existing.contains(getRuleKey(rule))) {
+				continue;
+			}
+
+			lines.add("# " + method.count.get() + " ghost chunkload(s), e.g. via " + method.example);
+			if (rule != null) {
+				lines.add(rule);
+				count++;
+			} else {
+				lines.add("# No rule possible for " + method.className + " " + method.target.name + ": it loads chunks through calls which cannot be wrapped");
+			}
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		File tmpFile = new File(file.getPath() + ".tmp");
+		Files.write(tmpFile.toPath(), lines, StandardCharsets.UTF_8);
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return count;
+	}
+
+	@SubscribeEvent
+	public void onServerTick(TickEvent.ServerTickEvent event) {
+		if (event.phase == TickEvent.Phase.END && deadline != 0 && System.currentTimeMillis() >= deadline) {
+			stop();
+		}
+	}
+}
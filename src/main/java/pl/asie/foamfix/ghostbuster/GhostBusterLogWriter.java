@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 Vincent Lee
+ * Copyright (c) 2020, 2021 Adrian "asie" Siekierka
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package pl.asie.foamfix.ghostbuster;
+
+import pl.asie.foamfix.FoamFixMod;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes /ghostbuster events to a file from a daemon thread. Producers claim
+ * slots of a bounded ring of pre-allocated records without locking, and
+ * events which do not fit are counted as dropped rather than waited on.
+ */
+final class GhostBusterLogWriter implements Runnable {
+	private static final class Record {
+		private volatile long sequence;
+		private long time;
+		private String text;
+	}
+
+	private final File file;
+	private final Record[] records;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private long head;
+	private long droppedReported;
+	private volatile boolean running = true;
+	/**
+	 * Set by the writer thread before it parks, so that producers only pay for
+	 * an unpark when it is idle.
+	 */
+	private volatile boolean sleeping;
+	private volatile boolean failed;
+
+	GhostBusterLogWriter(File file, int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.file = file;
+		this.records = new Record[size];
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			records[i] = new Record();
+			records[i].sequence = i;
+		}
+
+		this.thread = new Thread(this, "FoamFix GhostBuster log writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	boolean isFailed() {
+		return failed;
+	}
+
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Queues an event; never blocks.
+	 *
+	 * @return False if the buffer was full and the event was dropped.
+	 */
+	boolean offer(String text) {
+		long pos = tail.get();
+		Record record;
+		while (true) {
+			record = records[(int) pos & mask];
+			long diff = record.sequence - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				dropped.incrementAndGet();
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+
+		record.time = System.currentTimeMillis();
+		record.text = text;
+		record.sequence = pos + 1;
+		if (sleeping) {
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the writer thread, waiting for it to write out queued events.
+	 */
+	void close() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean hasPending() {
+		return records[(int) head & mask].sequence == head + 1 || dropped.get() != droppedReported;
+	}
+
+	private boolean drain(BufferedWriter writer, SimpleDateFormat dateFormat) throws IOException {
+		boolean wrote = false;
+		while (true) {
+			Record record = records[(int) head & mask];
+			if (record.sequence != head + 1) {
+				break;
+			}
+
+			writer.write("[" + dateFormat.format(new Date(record.time)) + "] ");
+			writer.write(record.text);
+			writer.newLine();
+
+			record.text = null;
+			record.sequence = head + records.length;
+			head++;
+			wrote = true;
+		}
+
+		long droppedNow = dropped.get();
+		if (droppedNow != droppedReported) {
+			writer.write("--- " + (droppedNow - droppedReported) + " events dropped, log buffer full ---");
+			writer.newLine();
+			droppedReported = droppedNow;
+			wrote = true;
+		}
+		return wrote;
+	}
+
+	@Override
+	public void run() {
+		// Only this thread formats dates, so the SimpleDateFormat needs no locking.
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)))) {
+			writer.write("--- Started logging at " + dateFormat.format(new Date()) + " ---");
+			writer.newLine();
+
+			while (running) {
+				if (drain(writer, dateFormat)) {
+					writer.flush();
+				} else {
+					// Events published after sleeping is set will see it and unpark us.
+					sleeping = true;
+					if (running && !hasPending()) {
+						LockSupport.park(this);
+					}
+					sleeping = false;
+				}
+			}
+			drain(writer, dateFormat);
+		} catch (IOException e) {
+			failed = true;
+			FoamFixMod.logger.error("Could not write GhostBuster log file " + file, e);
+		}
+	}
+}
@@ -28,124 +28,124 @@ import net.minecraft.world.ChunkCoordIntPair;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.gen.ChunkProviderServer;
 import pl.asie.foamfix.FoamFixMod;
+import pl.asie.foamfix.bugfixmod.BugfixModSettings;
 import pl.asie.foamfix.bugfixmod.coremod.BugfixModClassTransformer;
 
-import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GhostBusterLogger {
 	public static boolean debugChunkProviding = false;
 	public static boolean countNotifyBlock = false;
-	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	private static FileOutputStream fos;
-	private static OutputStreamWriter osw;
-	private static BufferedWriter bwr;
-
-	public static void saveLogFile() {
-		if (fos != null) {
-			try {
-				bwr.close();
-			} catch (IOException e) {
-				// pass
-			}
-			try {
-				osw.close();
-			} catch (IOException e) {
-				// pass
+	private static final Map<String, Boolean> serverClasses = new ConcurrentHashMap<>();
+	private static volatile GhostBusterLogWriter writer;
+	private static int sampleCounter;
+
+	public static synchronized void saveLogFile() {
+		if (writer != null) {
+			writer.close();
+			if (writer.getDroppedCount() > 0) {
+				FoamFixMod.logger.warn("GhostBuster log buffer overflowed, " + writer.getDroppedCount() + " events were not written");
 			}
-			try {
-				fos.close();
-			} catch (IOException e) {
-				// pass
-			}
-			bwr = null;
-			osw = null;
-			fos = null;
+			writer = null;
 		}
 	}
 
-	private static void log(String s, boolean header) {
-		if (BugfixModClassTransformer.instance.settings.gbDebuggerLogFile == null) {
-			FoamFixMod.logger.info(s);
-		} else {
-			if (fos == null) {
-				try {
-					fos = new FileOutputStream(BugfixModClassTransformer.instance.settings.gbDebuggerLogFile, true);
-					osw = new OutputStreamWriter(fos);
-					bwr = new BufferedWriter(osw);
-
-					bwr.write(String.format("--- Started logging at %s ---%n", DATE_FORMAT.format(new Date())));
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+	private static GhostBusterLogWriter getWriter(BugfixModSettings settings) {
+		GhostBusterLogWriter w = writer;
+		if (w == null) {
+			synchronized (GhostBusterLogger.class) {
+				w = writer;
+				if (w == null) {
+					writer = w = new GhostBusterLogWriter(settings.gbDebuggerLogFile, settings.gbDebuggerLogBufferSize);
 				}
 			}
+		}
+		return w;
+	}
 
-			try {
-				if (header) {
-					bwr.write(String.format("[%s] %s%n", DATE_FORMAT.format(new Date()), s));
-				} else {
-					bwr.write(String.format("%s%n", s));
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	private static void log(String s) {
+		BugfixModSettings settings = BugfixModClassTransformer.instance.settings;
+		GhostBusterLogWriter w = settings.gbDebuggerLogFile != null ? getWriter(settings) : null;
+		if (w == null || w.isFailed()) {
+			FoamFixMod.logger.info(s);
+		} else {
+			w.offer(s);
 		}
 	}
 
-	private static void logFlush() {
-		if (bwr != null) {
+	private static boolean isServerClass(String className) {
+		Boolean result = serverClasses.get(className);
+		if (result == null) {
 			try {
-				bwr.flush();
+				result = MinecraftServer.class.isAssignableFrom(GhostBusterLogger.class.getClassLoader().loadClass(className));
 			} catch (Exception e) {
-				e.printStackTrace();
+				result = false;
 			}
+			serverClasses.put(className, result);
 		}
+		return result;
 	}
 
 	public static void onProvideChunk(ChunkProviderServer server, int x, int z) {
-		if (debugChunkProviding) {
+		if (debugChunkProviding || GhostBusterLearner.isLearning()) {
 			Chunk chunk = (Chunk) server.loadedChunkHashMap.getValueByKey(ChunkCoordIntPair.chunkXZ2Int(x, z));
 			if (chunk != null) {
 				return;
 			}
 
 			if (!server.worldObj.getPersistentChunks().containsKey(new ChunkCoordIntPair(x, z))) {
-				int i = 0;
+				BugfixModSettings settings = BugfixModClassTransformer.instance.settings;
+
+				// Races between threads only make the sampling slightly less even.
+				if (settings.gbDebuggerSampleRate > 1) {
+					if (++sampleCounter < settings.gbDebuggerSampleRate) {
+						return;
+					}
+					sampleCounter = 0;
+				}
+
 				StackTraceElement[] stea = new Throwable().getStackTrace();
 
+				// different hook method than 1.12 - skip provideChunk, we know as much
+				int end = settings.gbDebuggerStackDepth > 0 ? Math.min(stea.length, 2 + settings.gbDebuggerStackDepth) : stea.length;
+				for (int i = 2; i < end; i++) {
+					if (isServerClass(stea[i].getClassName())) {
+						end = i;
+						break;
+					}
+				}
+
+				// The learner attributes loads to block and tile entity methods itself,
+				// so the vanilla call sites filtered below simply go unattributed.
+				if (GhostBusterLearner.isLearning()) {
+					GhostBusterLearner.observe(stea, 2, end);
+				}
+
+				if (!debugChunkProviding) {
+					return;
+				}
+
 				if (stea.length > 3 && stea[3].toString().startsWith("net.minecraft.world.WorldServer.func_147456_g")) {
-					i = -1;
+					return;
 				}
 
-				if (i >= 0 && !countNotifyBlock) {
+				if (!countNotifyBlock) {
 					for (StackTraceElement ste : stea) {
-						if (ste.toString().startsWith("net.minecraft.world.World.markAndNotifyBlock")) {
-							i = -1;
-							break;
+						if ("markAndNotifyBlock".equals(ste.getMethodName()) && "net.minecraft.world.World".equals(ste.getClassName())) {
+							return;
 						}
 					}
 				}
 
-				if (i >= 0) {
-					log("Block in chunk [" + x + ", " + z + "] may be ghostloaded!", true);
+				GhostBusterCallSites.record(stea, 2, end);
 
-					// different hook method than 1.12 - skip provideChunk, we know as much
-					for (StackTraceElement ste : stea) {
-						try {
-							Class c = GhostBusterLogger.class.getClassLoader().loadClass(ste.getClassName());
-							if (MinecraftServer.class.isAssignableFrom(c)) {
-								break;
-							}
-							if ((i++) > 1) {
-								log("- " + ste.toString(), false);
-							}
-						} catch (Exception e) {
-
-						}
+				if (settings.gbDebuggerLogEvents) {
+					StringBuilder builder = new StringBuilder("Block in chunk [").append(x).append(", ").append(z).append("] may be ghostloaded!");
+					for (int i = 2; i < end; i++) {
+						builder.append(System.lineSeparator()).append("- ").append(stea[i]);
 					}
-
-					logFlush();
+					log(builder.toString());
 				}
 			}
 		}
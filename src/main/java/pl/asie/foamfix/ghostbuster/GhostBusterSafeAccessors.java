@@ -23,14 +23,91 @@
 
 package pl.asie.foamfix.ghostbuster;
 
+import cpw.mods.fml.relauncher.Side;
+import cpw.mods.fml.relauncher.SideOnly;
 import net.minecraft.block.Block;
 import net.minecraft.init.Blocks;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.world.ChunkCoordIntPair;
 import net.minecraft.world.IBlockAccess;
 import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.WorldServerMulti;
+import net.minecraft.world.biome.BiomeGenBase;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.IChunkProvider;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraftforge.common.util.ForgeDirection;
 
 public class GhostBusterSafeAccessors {
+	/**
+	 * The chunk most recently resolved by {@link #getLoadedChunk(ChunkProviderServer, int, int)}.
+	 * Neighbouring block checks from a tick almost always hit the same chunk;
+	 * the chunk's own world and loaded flag are checked before it is reused.
+	 */
+	private static Chunk lastChunk;
+
+	public static void clearCache() {
+		lastChunk = null;
+	}
+
+	/**
+	 * Only vanilla server worlds get the direct chunk reads; subclasses may
+	 * override getBlock and friends, so their own methods are called instead.
+	 */
+	private static ChunkProviderServer getServerProvider(IBlockAccess access) {
+		Class<?> accessClass = access.getClass();
+		if (accessClass == WorldServer.class || accessClass == WorldServerMulti.class) {
+			IChunkProvider provider = ((WorldServer) access).getChunkProvider();
+			if (provider instanceof ChunkProviderServer) {
+				return (ChunkProviderServer) provider;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Equivalent to chunkExists followed by getChunkFromChunkCoords, but with
+	 * a single hash lookup (or none, if the last chunk matches).
+	 *
+	 * @return The chunk, or null if it is not loaded.
+	 */
+	private static Chunk getLoadedChunk(ChunkProviderServer provider, int chunkX, int chunkZ) {
+		Chunk chunk = lastChunk;
+		if (chunk != null && chunk.xPosition == chunkX && chunk.zPosition == chunkZ
+				&& chunk.worldObj == provider.worldObj && chunk.isChunkLoaded) {
+			return chunk;
+		}
+
+		chunk = (Chunk) provider.loadedChunkHashMap.getValueByKey(ChunkCoordIntPair.chunkXZ2Int(chunkX, chunkZ));
+		if (chunk != null && chunk.isChunkLoaded) {
+			lastChunk = chunk;
+		}
+		return chunk;
+	}
+
+	private static boolean isInWorldBounds(int x, int y, int z) {
+		return x >= -30000000 && z >= -30000000 && x < 30000000 && z < 30000000 && y >= 0 && y < 256;
+	}
+
 	public static boolean isAreaLoaded(IBlockAccess access, int x, int y, int z, int radius) {
-		if (access instanceof World) {
+		ChunkProviderServer provider = getServerProvider(access);
+		if (provider != null) {
+			if (y < 0 || y >= 256) {
+				return false;
+			}
+
+			int minX = (x - radius) >> 4, maxX = (x + radius) >> 4;
+			int minZ = (z - radius) >> 4, maxZ = (z + radius) >> 4;
+			for (int cx = minX; cx <= maxX; cx++) {
+				for (int cz = minZ; cz <= maxZ; cz++) {
+					if (getLoadedChunk(provider, cx, cz) == null) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} else if (access instanceof World) {
 			return ((World) access).checkChunksExist(x - radius, y, z - radius, x + radius, y, z + radius);
 		} else {
 			return true;
@@ -38,7 +115,10 @@ public class GhostBusterSafeAccessors {
 	}
 
 	public static boolean isBlockLoaded(IBlockAccess access, int x, int y, int z) {
-		if (access instanceof World) {
+		ChunkProviderServer provider = getServerProvider(access);
+		if (provider != null) {
+			return getLoadedChunk(provider, x >> 4, z >> 4) != null;
+		} else if (access instanceof World) {
 			return ((World) access).getChunkProvider().chunkExists(x >> 4, z >> 4);
 		} else {
 			return true;
@@ -46,10 +126,70 @@ public class GhostBusterSafeAccessors {
 	}
 
 	public static Block getBlock(IBlockAccess access, int x, int y, int z) {
+		ChunkProviderServer provider = getServerProvider(access);
+		if (provider != null) {
+			if (!isInWorldBounds(x, y, z)) {
+				return Blocks.air;
+			}
+			Chunk chunk = getLoadedChunk(provider, x >> 4, z >> 4);
+			return chunk != null ? chunk.getBlock(x & 15, y, z & 15) : Blocks.air;
+		}
 		return isBlockLoaded(access, x, y, z) ? access.getBlock(x, y, z) : Blocks.air;
 	}
 
 	public static boolean isAirBlock(IBlockAccess access, int x, int y, int z) {
+		ChunkProviderServer provider = getServerProvider(access);
+		if (provider != null) {
+			if (!isInWorldBounds(x, y, z)) {
+				return true;
+			}
+			Chunk chunk = getLoadedChunk(provider, x >> 4, z >> 4);
+			return chunk == null || chunk.getBlock(x & 15, y, z & 15).isAir(access, x, y, z);
+		}
 		return !isBlockLoaded(access, x, y, z) || access.isAirBlock(x, y, z);
 	}
+
+	public static int getBlockMetadata(IBlockAccess access, int x, int y, int z) {
+		ChunkProviderServer provider = getServerProvider(access);
+		if (provider != null) {
+			if (!isInWorldBounds(x, y, z)) {
+				return 0;
+			}
+			Chunk chunk = getLoadedChunk(provider, x >> 4, z >> 4);
+			return chunk != null ? chunk.getBlockMetadata(x & 15, y, z & 15) : 0;
+		}
+		return isBlockLoaded(access, x, y, z) ? access.getBlockMetadata(x, y, z) : 0;
+	}
+
+	public static TileEntity getTileEntity(IBlockAccess access, int x, int y, int z) {
+		return isBlockLoaded(access, x, y, z) ? access.getTileEntity(x, y, z) : null;
+	}
+
+	public static int getBlockLightValue(World world, int x, int y, int z) {
+		return isBlockLoaded(world, x, y, z) ? world.getBlockLightValue(x, y, z) : 0;
+	}
+
+	/**
+	 * Unloaded blocks are treated as open sky with no block light beyond the
+	 * requested minimum.
+	 */
+	@SideOnly(Side.CLIENT)
+	public static int getLightBrightnessForSkyBlocks(IBlockAccess access, int x, int y, int z, int minBlockLight) {
+		return isBlockLoaded(access, x, y, z) ? access.getLightBrightnessForSkyBlocks(x, y, z, minBlockLight) : (15 << 20) | (minBlockLight << 4);
+	}
+
+	public static boolean isSideSolid(IBlockAccess access, int x, int y, int z, ForgeDirection side, boolean _default) {
+		return isBlockLoaded(access, x, y, z) ? access.isSideSolid(x, y, z, side, _default) : _default;
+	}
+
+	/**
+	 * Biomes of unloaded chunks are taken from the world's chunk manager, as
+	 * vanilla World does, so custom implementations cannot load the chunk.
+	 */
+	public static BiomeGenBase getBiomeGenForCoords(IBlockAccess access, int x, int z) {
+		if (access instanceof World && !isBlockLoaded(access, x, 0, z)) {
+			return ((World) access).getWorldChunkManager().getBiomeGenAt(x, z);
+		}
+		return access.getBiomeGenForCoords(x, z);
+	}
 }
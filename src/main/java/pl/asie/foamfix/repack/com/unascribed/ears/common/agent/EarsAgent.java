@@ -12,6 +12,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.objectweb.asm.tree.ClassNode;
+
 import pl.asie.foamfix.repack.com.unascribed.ears.common.EarsVersion;
 import pl.asie.foamfix.repack.com.unascribed.ears.common.agent.mini.MiniTransformer;
 import pl.asie.foamfix.repack.com.unascribed.ears.common.debug.EarsLog;
@@ -48,6 +50,28 @@ public class EarsAgent {
 		}
 	}
 	
+	public static boolean isTarget(String className) {
+		for (MiniTransformer mt : TRANSFORMERS) {
+			if (mt.canTransform(className)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Transforms an already parsed class in place.
+	 * 
+	 * @return true if the stack map frames of the class need to be recomputed
+	 */
+	public static boolean transform(String className, ClassNode clazz) {
+		boolean frames = false;
+		for (MiniTransformer mt : TRANSFORMERS) {
+			frames |= mt.transform(className, clazz);
+		}
+		return frames;
+	}
+	
 	private static void writeDump(String className, byte[] classBytes, String what) {
 		File dir = new File("ears-debug-classes", className.replace('/', '.'));
 		dir.mkdirs();
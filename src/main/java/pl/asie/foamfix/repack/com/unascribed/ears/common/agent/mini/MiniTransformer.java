@@ -132,6 +132,10 @@ public abstract class MiniTransformer {
 		}
 	}
 	
+	public final boolean canTransform(String className) {
+		return classes.contains(className.replace('.', '/'));
+	}
+	
 	public final byte[] transform(String className, byte[] basicClass) {
 		className = className.replace('.', '/');
 		if (!classes.contains(className)) return basicClass;
@@ -144,8 +148,29 @@ public abstract class MiniTransformer {
 		ClassNode clazz = new ClassNode();
 		reader.accept(clazz, 0);
 		
-		boolean frames = false;
+		int flags = ClassWriter.COMPUTE_MAXS;
+		if (transform(className, clazz)) {
+			flags |= ClassWriter.COMPUTE_FRAMES;
+		}
+		ClassWriter writer = new ClassWriter(flags);
+		clazz.accept(writer);
+		byte[] bys = writer.toByteArray();
+		if (DUMP) {
+			dump(className, bys, "after");
+		}
+		return bys;
+	}
+	
+	/**
+	 * Transforms an already parsed class in place.
+	 * 
+	 * @return true if the stack map frames of the class need to be recomputed
+	 */
+	public final boolean transform(String className, ClassNode clazz) {
+		className = className.replace('.', '/');
+		if (!classes.contains(className)) return false;
 		
+		boolean frames = false;
 		List<String> foundMethods = new ArrayList<String>();
 		Set<String> requiredsNotSeen = new HashSet<String>(requiredMethods.size());
 		requiredsNotSeen.addAll(requiredMethods);
@@ -195,17 +220,7 @@ public abstract class MiniTransformer {
 			throw new Error(msgS);
 		}
 		
-		int flags = ClassWriter.COMPUTE_MAXS;
-		if (frames) {
-			flags |= ClassWriter.COMPUTE_FRAMES;
-		}
-		ClassWriter writer = new ClassWriter(flags);
-		clazz.accept(writer);
-		byte[] bys = writer.toByteArray();
-		if (DUMP) {
-			dump(className, bys, "after");
-		}
-		return bys;
+		return frames;
 	}
 	
 	private static void dump(String className, byte[] bys, String phase) {